@@ -6,6 +6,6 @@ CLASSPATH=../target/scala-2.12/libmix-assembly-0.2-SNAPSHOT.jar:../target/scala-
 MAINCLASS=org.nvotes.libmix.benchmark.Benchmark
 
 # the first options to test
-OPTIONS_ONE="-Dlibmix.gmp=true -Dlibmix.extractor=true -Dlibmix.parallel-generators=true"
+OPTIONS_ONE="-Dlibmix.gmp=true -Dlibmix.extractor=true -Dlibmix.parallel-generators=true -Dlibmix.parallel-bridging=true -Dlibmix.multiexp=true"
 
 java $OPTIONS_ONE -classpath $CLASSPATH $MAINCLASS $*
@@ -0,0 +1,56 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+
+import org.openjdk.jmh.annotations._
+
+/** Compares the scala parallel collections and ForkJoin implementations
+ *
+ *  All compute the same batch of modpows with common modulus, in place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class ModPowServiceBenchmark {
+
+  @Param(Array("1000"))
+  var size: Int = _
+
+  @Param(Array("2048"))
+  var bits: Int = _
+
+  @Param(Array("8"))
+  var chunkSize: Int = _
+
+  var mod: BigInteger = _
+  var bases: Array[BigInteger] = _
+  var pows: Array[BigInteger] = _
+  var results: Array[BigInteger] = _
+  var forkJoin: ForkJoinModPowService = _
+
+  @Setup
+  def setup(): Unit = {
+    val group = GStarModSafePrime.getFirstInstance(bits)
+    val random = new java.util.Random(1)
+    mod = group.getModulus
+    bases = Array.fill(size)(group.getDefaultGenerator().getValue.modPow(new BigInteger(bits, random), mod))
+    pows = Array.fill(size)(new BigInteger(group.getOrder.bitLength, random).mod(group.getOrder))
+    results = new Array[BigInteger](size)
+    forkJoin = new ForkJoinModPowService(Runtime.getRuntime.availableProcessors, chunkSize)
+  }
+
+  @Benchmark
+  def parallelCollections(): Array[BigInteger] = {
+    GmpParallelModPowService.compute(bases, pows, size, mod, results)
+    results
+  }
+
+  @Benchmark
+  def forkJoinPool(): Array[BigInteger] = {
+    forkJoin.compute(bases, pows, size, mod, results)
+    results
+  }
+}
@@ -1,4 +1,4 @@
-// drb MPBridge.run
+// drb MPBridge.run, fixed base precomputation, single pass extraction, chunked extraction
 /*
  * UniCrypt
  *
@@ -42,7 +42,9 @@
  */
 package ch.bfh.unicrypt.crypto.mixer.abstracts;
 
+import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer;
 import ch.bfh.unicrypt.crypto.mixer.interfaces.Mixer;
+import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme;
 import ch.bfh.unicrypt.helper.random.RandomByteSequence;
 import ch.bfh.unicrypt.helper.random.hybrid.HybridRandomByteSequence;
 import ch.bfh.unicrypt.math.algebra.general.classes.PermutationElement;
@@ -54,6 +56,10 @@ import ch.bfh.unicrypt.math.algebra.general.interfaces.Set;
 import ch.bfh.unicrypt.math.function.classes.PermutationFunction;
 import ch.bfh.unicrypt.math.function.interfaces.Function;
 
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import java.math.BigInteger;
 import org.nvotes.libmix.mpservice.MPBridge;
 
 /**
@@ -126,16 +132,74 @@ public abstract class AbstractMixer<C extends Set, R extends Set>
 		}
 		final Element[] elementsPrime = new Element[this.getSize()];
 
-		MPBridge.run(() -> {
-			for (int i = 0; i < this.getSize(); i++) {
-				elementsPrime[i] = this.getShuffleFunction().apply(elements.getAt(i), randomizations.getAt(i));
+		// drb re-encryption uses the encryption generator and public key as fixed bases
+		if (this instanceof ReEncryptionMixer) {
+			ReEncryptionMixer mixer = (ReEncryptionMixer) this;
+			if (mixer.getReEncryptionScheme() instanceof ElGamalEncryptionScheme) {
+				MPBridge.precompute(((ElGamalEncryptionScheme) mixer.getReEncryptionScheme()).getGenerator());
 			}
-			return elementsPrime;
-		}, "2");
+			MPBridge.precompute(mixer.getPublicKey());
+		}
+
+		// drb ElGamal re-encryption requests the randomization powers, multiplies after they are computed
+		if (MPBridge.isDeferred() && this.isGStarModElGamal()) {
+			ReEncryptionMixer mixer = (ReEncryptionMixer) this;
+			final GStarModElement generator
+				   = (GStarModElement) ((ElGamalEncryptionScheme) mixer.getReEncryptionScheme()).getGenerator();
+			final GStarModElement publicKey = (GStarModElement) mixer.getPublicKey();
+			final GStarMod group = generator.getSet();
+			final BigInteger modulus = group.getModulus();
+			// drb in chunks of at most libmix.max-inflight modpows, two per ciphertext
+			final int step = MPBridge.chunkIndices(this.getSize(), 2);
+			for (int from = 0; from < this.getSize(); from += step) {
+				final int lo = from;
+				final int hi = Math.min(from + step, this.getSize());
+				MPBridge.defer("AbstractMixer.shuffle", () -> {
+					final MPBridge.Deferred[] powers = new MPBridge.Deferred[2 * (hi - lo)];
+					for (int i = lo; i < hi; i++) {
+						BigInteger r = ((BigInteger) randomizations.getAt(i).getValue()).mod(group.getOrder());
+						powers[2 * (i - lo)] = MPBridge.deferModPow(generator.getValue(), r, modulus);
+						powers[2 * (i - lo) + 1] = MPBridge.deferModPow(publicKey.getValue(), r, modulus);
+					}
+					return () -> {
+						for (int i = lo; i < hi; i++) {
+							Pair element = (Pair) elements.getAt(i);
+							BigInteger a = ((GStarModElement) element.getFirst()).getValue();
+							BigInteger b = ((GStarModElement) element.getSecond()).getValue();
+							elementsPrime[i] = element.getSet().getElement(
+								   group.getElementUnchecked(a.multiply(powers[2 * (i - lo)].get()).mod(modulus)),
+								   group.getElementUnchecked(b.multiply(powers[2 * (i - lo) + 1].get()).mod(modulus)));
+						}
+						return elementsPrime;
+					};
+				});
+			}
+		}
+		else {
+			MPBridge.runChunked("AbstractMixer.shuffle", this.getSize(), (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
+					elementsPrime[i] = this.getShuffleFunction().apply(elements.getAt(i), randomizations.getAt(i));
+				}
+			});
+		}
 
 		return this.getPermutationFunction().apply(Tuple.getInstance(elementsPrime), permutation);
 	}
 
+	// drb
+	/**
+	 * Returns true if this is a re-encryption mixer for ElGamal ciphertexts over a GStarMod group.
+	 */
+	private boolean isGStarModElGamal() {
+		if (!(this instanceof ReEncryptionMixer)) {
+			return false;
+		}
+		ReEncryptionMixer mixer = (ReEncryptionMixer) this;
+		return mixer.getReEncryptionScheme() instanceof ElGamalEncryptionScheme
+			   && ((ElGamalEncryptionScheme) mixer.getReEncryptionScheme()).getGenerator() instanceof GStarModElement
+			   && mixer.getPublicKey() instanceof GStarModElement;
+	}
+
 	@Override
 	public final Tuple generateRandomizations() {
 		return this.generateRandomizations(HybridRandomByteSequence.getInstance());
@@ -1,4 +1,4 @@
-// drb MPBridge.run
+// drb MPBridge.run, multi-exponentiation inner product, chunked extraction
 /*
  * UniCrypt
  *
@@ -226,18 +226,25 @@ public abstract class AbstractShuffleProofSystem
 		if (!t1.getSet().isGroup() || t1.getArity() < 1) {
 			throw new IllegalArgumentException();
 		}
-		final Element innerProduct = ((Group) t1.getSet().getAt(0)).getIdentityElement();
+		// drb multi-exponentiation, null if not supported
+		final Element multiExp = MPBridge.multiExp(t1, t2);
+		if (multiExp != null) {
+			return multiExp;
+		}
+		Element innerProduct = ((Group) t1.getSet().getAt(0)).getIdentityElement();
 
-		Element ret = MPBridge.run(() -> {
-			Element ip = innerProduct;
-			for (int i = 0; i < t1.getArity(); i++) {
-				ip = ip.apply(t1.getAt(i).selfApply(t2.getAt(i)));
+		// drb powers in chunks of at most libmix.max-inflight modpows, then their product
+		final Element[] powers = new Element[t1.getArity()];
+		MPBridge.runChunked("AbstractShuffleProofSystem.innerProduct", t1.getArity(), (lo, hi) -> {
+			for (int i = lo; i < hi; i++) {
+				powers[i] = t1.getAt(i).selfApply(t2.getAt(i));
 			}
-			return ip;
-			}, "2"
-		);
+		});
+		for (Element power : powers) {
+			innerProduct = innerProduct.apply(power);
+		}
 
-		return ret;
+		return innerProduct;
 	}
 
 	//===================================================================================
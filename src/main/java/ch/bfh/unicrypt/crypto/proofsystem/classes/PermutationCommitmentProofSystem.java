@@ -1,4 +1,4 @@
-// drb MPBridge.run and generators and bad loop trace
+// drb MPBridge.run and generators and bad loop trace, parallel bridging commitments, fixed base precomputation, multi-exponentiation inner product, batch verification, elliptic curve generators, chunked extraction, typed bridging
 /*
  * UniCrypt
  *
@@ -73,7 +73,10 @@ import ch.bfh.unicrypt.math.function.classes.ProductFunction;
 // drb
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import java.math.BigInteger;
+import org.nvotes.libmix.mpservice.BatchVerifier;
 import org.nvotes.libmix.mpservice.MPBridge;
+import org.nvotes.libmix.Util$;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -96,6 +99,7 @@ public class PermutationCommitmentProofSystem
 
 	// drb
 	private final static Logger logger = LoggerFactory.getLogger(PermutationCommitmentProofSystem.class);
+	private static volatile boolean parallelBridging = Util$.MODULE$.getEnvBoolean("libmix.parallel-bridging");
 
 
 	private PermutationCommitmentProofSystem(SigmaChallengeGenerator sigmaChallengeGenerator,
@@ -108,6 +112,8 @@ public class PermutationCommitmentProofSystem
 		this.size = size;
 		this.kr = kr;
 		this.independentGenerators = independentGenerators;
+		// drb g and h are the fixed bases of the bridging commitments
+		MPBridge.precompute(independentGenerators.getAt(0), independentGenerators.getAt(1));
 
 		this.ke = ((ZMod) ((ProductSet) this.eValuesGenerator.getChallengeSpace()).getFirst()).getModulus()
 			   .subtract(MathUtil.ONE).bitLength();
@@ -223,26 +229,46 @@ public class PermutationCommitmentProofSystem
 		final Element[] ds = new Element[this.size];
 		ds[0] = rV.getAt(0);
 
-		final Element[] temp = new Element[this.size];
-		final Tuple ePrimeVFinal = ePrimeV;
-		MPBridge.run(() -> {
-			for (int i = 0; i < this.size; i++) {
-				temp[i] = g.selfApply(rV.getAt(i));  //   [2n]
-				if (i > 0) {
-					ds[i] = rV.getAt(i).apply(ds[i - 1].selfApply(ePrimeVFinal.getAt(i)));
-				}
+		if (parallelBridging) {
+			// drb
+			// c_i = g^r_i * c_i-1^e'_i unrolls to c_i = g^d_i * h^E_i, where d_i = r_i + e'_i * d_i-1 is
+			// the d chain below and E_i = e'_0 * ... * e'_i, both computed in Z_q. All c_i are then independent.
+			final ZMod zModOrder = this.cyclicGroup.getZModOrder();
+			final Element[] es = new Element[this.size];
+			es[0] = zModOrder.getElement(ePrimeV.getAt(0).convertToBigInteger().mod(this.cyclicGroup.getOrder()));
+			for (int i = 1; i < this.size; i++) {
+				ds[i] = rV.getAt(i).apply(selfApply(ds[i - 1], ePrimeV.getAt(i)));
+				es[i] = selfApply(es[i - 1], ePrimeV.getAt(i));
 			}
-			return 0;
-		}, "2");
 
+			// drb in chunks of at most libmix.max-inflight modpows
+			MPBridge.runChunked("PermutationCommitmentProofSystem.bridging", this.size, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
+					cs[i] = selfApply(g, ds[i]).apply(selfApply(h, es[i]));  //   [2n]
+				}
+			});
+		}
+		else {
+			final Element[] temp = new Element[this.size];
+			final Tuple ePrimeVFinal = ePrimeV;
+			MPBridge.runChunked("PermutationCommitmentProofSystem.bridging", this.size, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
+					temp[i] = selfApply(g, rV.getAt(i));  //   [2n]
+					if (i > 0) {
+						ds[i] = rV.getAt(i).apply(selfApply(ds[i - 1], ePrimeVFinal.getAt(i)));
+					}
+				}
+			});
 
-		logger.info("Cannot parallelize..");
-		long now = System.currentTimeMillis();
-		for (int i = 0; i < this.size; i++) {
-			Element c_i_1 = i == 0 ? h : cs[i - 1];
-			cs[i] = temp[i].apply(c_i_1.selfApply(ePrimeV.getAt(i)));  //   [2n]
+
+			logger.info("Cannot parallelize..");
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < this.size; i++) {
+				Element c_i_1 = i == 0 ? h : cs[i - 1];
+				cs[i] = temp[i].apply(selfApply(c_i_1, ePrimeV.getAt(i)));  //   [2n]
+			}
+			logger.info("Bad loop: [" + ((System.currentTimeMillis() - now) / 1000.0) + " ms]");
 		}
-		logger.info("Bad loop: [" + ((System.currentTimeMillis() - now) / 1000.0) + " ms]");
 
 		final Tuple cV = Tuple.getInstance(cs);
 		final Element d = ds[ds.length - 1];
@@ -319,6 +345,77 @@ public class PermutationCommitmentProofSystem
 		return left.isEquivalent(right);                                                // [5N+7]
 	}
 
+	// drb small exponent batch verification of the 3N+3 equations of abstractVerify, combined
+	// into a single multi-exponentiation, falls back to verify for groups other than GStarMod
+	public boolean batchVerify(Element proofElement, Element publicInputElement, int bits) {
+		if (!this.getProofSpace().contains(proofElement) || !this.getPublicInputSpace().contains(publicInputElement)) {
+			throw new IllegalArgumentException();
+		}
+		final Tuple proof = (Tuple) proofElement;
+		final Tuple publicInput = (Tuple) publicInputElement;
+		if (!(this.cyclicGroup instanceof GStarMod)) {
+			return this.verify(proof, publicInput);
+		}
+		final BigInteger q = this.cyclicGroup.getOrder();
+
+		// Unfold proof
+		final Tuple cV = (Tuple) proof.getAt(1);
+		final Tuple commitment = (Tuple) proof.getAt(2);
+		final Tuple response = (Tuple) proof.getAt(4);
+		final BigInteger v = (BigInteger) response.getAt(0).getValue();
+		final BigInteger w = (BigInteger) response.getAt(1).getValue();
+		final Tuple rV = (Tuple) response.getAt(2);
+		final BigInteger d = (BigInteger) response.getAt(3).getValue();
+		final Tuple ePrimeV = (Tuple) response.getAt(4);
+
+		// Get additional values
+		final Tuple eV = (Tuple) this.eValuesGenerator.generate(publicInput);
+		final Element g = this.independentGenerators.getAt(0);
+		final Element h = this.independentGenerators.getAt(1);
+		final Tuple gV = this.independentGenerators.extract(1, this.size);
+		final BigInteger c = (BigInteger) this.sigmaChallengeGenerator
+			   .generate(Pair.getInstance(publicInput, cV), commitment).getValue();
+		BigInteger eProd = BigInteger.ONE;
+		for (int i = 0; i < this.size; i++) {
+			eProd = eProd.multiply((BigInteger) eV.getAt(i).getValue()).mod(q);
+		}
+
+		// Random exponents, one per equation
+		final BatchVerifier batch = new BatchVerifier((GStarMod) this.cyclicGroup, bits);
+		final BigInteger[] alphas = new BigInteger[this.size + 3];
+		for (int j = 0; j < alphas.length; j++) {
+			alphas[j] = batch.getRandom();
+		}
+
+		// t_j^-alpha_j
+		for (int j = 0; j < this.size + 3; j++) {
+			batch.add(commitment.getAt(j), alphas[j].negate());
+		}
+		// 0:   g^v == t_0 * (prod(c_pi_i)/prod(g_i))^c
+		// N+2: g^d == t_(N+2) * (c_N/h^(prod(e)))^c
+		// 2+i: g^r_i * c_(i-1)^e'_i == t_(i+2) * c_i^c
+		BigInteger gExp = alphas[0].multiply(v).add(alphas[1].multiply(w)).add(alphas[this.size + 2].multiply(d));
+		for (int i = 0; i < this.size; i++) {
+			gExp = gExp.add(alphas[i + 2].multiply((BigInteger) rV.getAt(i).getValue()));
+		}
+		batch.add(g, gExp);
+		// 1:   g^w * prod(g_i^e'_i) == t_1 * prod(c_pi_i^e_i)^c
+		for (int i = 0; i < this.size; i++) {
+			final BigInteger ePrime = (BigInteger) ePrimeV.getAt(i).getValue();
+			final BigInteger e = (BigInteger) eV.getAt(i).getValue();
+			batch.add(gV.getAt(i), alphas[1].multiply(ePrime).add(c.multiply(alphas[0])));
+			batch.add(publicInput.getAt(i), c.multiply(alphas[0].add(alphas[1].multiply(e))).negate());
+
+			final Element c_i_1 = i == 0 ? h : cV.getAt(i - 1);
+			batch.add(c_i_1, alphas[i + 2].multiply(ePrime));
+			batch.add(cV.getAt(i), c.multiply(alphas[i + 2]).negate());
+		}
+		batch.add(cV.getAt(this.size - 1), c.multiply(alphas[this.size + 2]).negate());
+		batch.add(h, c.multiply(alphas[this.size + 2]).multiply(eProd));
+
+		return batch.verify();
+	}
+
 	//===================================================================================
 	// Private Helpers
 	//
@@ -329,17 +426,25 @@ public class PermutationCommitmentProofSystem
 		if (!t1.getSet().isGroup() || t1.getArity() < 1) {
 			throw new IllegalArgumentException();
 		}
+		// drb multi-exponentiation, null if not supported
+		final Element multiExp = MPBridge.multiExp(t1, t2);
+		if (multiExp != null) {
+			return multiExp;
+		}
 		Element innerProduct = ((Group) t1.getSet().getAt(0)).getIdentityElement();
 
-		Element ret = MPBridge.run(() -> {
-			Element ip = innerProduct;
-			for (int i = 0; i < t1.getArity(); i++) {
-				ip = ip.apply(t1.getAt(i).selfApply(t2.getAt(i)));
+		// drb powers in chunks of at most libmix.max-inflight modpows, then their product
+		final Element[] powers = new Element[t1.getArity()];
+		MPBridge.runChunked("PermutationCommitmentProofSystem.innerProduct", t1.getArity(), (lo, hi) -> {
+			for (int i = lo; i < hi; i++) {
+				powers[i] = t1.getAt(i).selfApply(t2.getAt(i));
 			}
-			return ip;
-		}, "2");
+		});
+		for (Element power : powers) {
+			innerProduct = innerProduct.apply(power);
+		}
 
-		return ret;
+		return innerProduct;
 	}
 
 	//===================================================================================
@@ -398,20 +503,19 @@ public class PermutationCommitmentProofSystem
 			//	pV[i + 2] = g.selfApply(rV.getAt(i)).apply(c_i_1.selfApply(ePrimeV.getAt(i)));
 			// }
 			final Element[] temp = new Element[this.size];
-			MPBridge.run(() -> {
-				for (int i = 0; i < this.size; i++) {
+			// drb in chunks of at most libmix.max-inflight modpows
+			MPBridge.runChunked("PermutationCommitmentProofSystem.preimage", this.size, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
 					Element c_i_1 = i == 0 ? this.h : this.cV.getAt(i - 1);
 					temp[i] = c_i_1.selfApply(ePrimeV.getAt(i));
 				}
-				return temp;
-			}, "2");
+			});
 
-			MPBridge.run(() -> {
-				for (int i = 0; i < this.size; i++) {
+			MPBridge.runChunked("PermutationCommitmentProofSystem.preimage", this.size, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
 					pV[i + 2] = g.selfApply(rV.getAt(i)).apply(temp[i]);
 				}
-				return pV;
-			}, "2");
+			});
 
 			// - Com(0, d)                          [1]
 			pV[this.size + 2] = this.gpcs.getRandomizationGenerator().selfApply(d);
@@ -463,7 +567,7 @@ public class PermutationCommitmentProofSystem
 		}
 		// drb
 		// Tuple generators = Tuple.getInstance(cyclicGroup.getIndependentGenerators(randomByteSequence).limit(size + 1));
-		Tuple generators = Tuple.getInstance(((GStarMod) cyclicGroup).getIndependentGeneratorsFIPS(0, size + 1));
+		Tuple generators = org.nvotes.libmix.Util.getIndependentGenerators(cyclicGroup, 0, size + 1);
 
 		return getInstance(sigmaChallengeGenerator, eValuesGenerator, generators, kr);
 	}
@@ -589,4 +693,27 @@ public class PermutationCommitmentProofSystem
 		return RandomOracleChallengeGenerator.getInstance(cs, randomOracle);
 	}
 
+	// drb
+	/**
+	 * Returns whether bridging commitments are computed as independent values, see libmix.parallel-bridging.
+	 */
+	public static boolean isParallelBridging() {
+		return parallelBridging;
+	}
+
+	/**
+	 * Enables or disables independent bridging commitments, overriding libmix.parallel-bridging.
+	 * <p>
+	 * Meant for tests and benchmarks.
+	 */
+	public static void setParallelBridging(boolean parallel) {
+		parallelBridging = parallel;
+	}
+
+	// drb the bridging elements are only known as raw Elements, this keeps the unchecked call in one place
+	@SuppressWarnings("unchecked")
+	private static Element selfApply(Element base, Element exponent) {
+		return base.selfApply(exponent);
+	}
+
 }
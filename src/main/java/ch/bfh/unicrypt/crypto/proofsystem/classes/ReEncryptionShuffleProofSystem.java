@@ -1,4 +1,4 @@
-// drb generators
+// drb generators, batch verification, elliptic curve generators, typed group check
 /*
  * UniCrypt
  *
@@ -71,6 +71,8 @@ import ch.bfh.unicrypt.math.function.classes.ProductFunction;
 // drb
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import java.math.BigInteger;
+import org.nvotes.libmix.mpservice.BatchVerifier;
 
 /**
  * The implementation of the re-encryption shuffle proof according to Wikström (@see Wik09 Protocol2:
@@ -225,6 +227,66 @@ public class ReEncryptionShuffleProofSystem
 		return left.isEquivalent(right);                                          // [6N+6]
 	}
 
+	// drb small exponent batch verification of the equations of abstractVerify, combined into a single
+	// multi-exponentiation, falls back to verify for schemes other than ElGamal over a GStarMod group
+	public boolean batchVerify(Element proofElement, Element publicInputElement, int bits) {
+		if (!this.getProofSpace().contains(proofElement) || !this.getPublicInputSpace().contains(publicInputElement)) {
+			throw new IllegalArgumentException();
+		}
+		final Tuple proof = (Tuple) proofElement;
+		final Tuple publicInput = (Tuple) publicInputElement;
+		if (!(this.getCyclicGroup() instanceof GStarMod) || !(this.encryptionScheme instanceof ElGamalEncryptionScheme)
+			   || !((CyclicGroup<?>) ((ElGamalEncryptionScheme) this.encryptionScheme).getCyclicGroup())
+					  .isEquivalent(this.getCyclicGroup())) {
+			return this.verify(proof, publicInput);
+		}
+		final Element generator = ((ElGamalEncryptionScheme) this.encryptionScheme).getGenerator();
+
+		// Unfold proof and public input
+		final Tuple commitment = (Tuple) proof.getAt(1);
+		final Tuple response = (Tuple) proof.getAt(3);
+		final Tuple cPiV = (Tuple) publicInput.getFirst();
+		final Tuple uV = (Tuple) publicInput.getAt(1);
+		final Tuple uPrimeV = (Tuple) publicInput.getAt(2);
+		final Tuple eV = (Tuple) this.getEValuesGenerator().generate(publicInput);
+		final BigInteger r = (BigInteger) response.getAt(0).getValue();
+		final BigInteger w = (BigInteger) response.getAt(1).getValue();
+		final Tuple ePrimeV = (Tuple) response.getAt(2);
+		final BigInteger c = (BigInteger) this.getSigmaChallengeGenerator().generate(publicInput, commitment).getValue();
+		final Tuple gV = this.getIndependentGenerators().extract(1, this.getSize());
+		final Tuple t1 = (Tuple) commitment.getAt(1);
+
+		// Random exponents, one per equation (the ciphertext equation is two equations)
+		final BatchVerifier batch = new BatchVerifier((GStarMod) this.getCyclicGroup(), bits);
+		final BigInteger alpha0 = batch.getRandom();
+		final BigInteger alpha1 = batch.getRandom();
+		final BigInteger alpha2 = batch.getRandom();
+
+		// 0: g^w * prod(g_i^e'_i) == t_0 * prod(c_pi_i^e_i)^c
+		batch.add(this.getIndependentGenerators().getAt(0), alpha0.multiply(w));
+		batch.add(commitment.getAt(0), alpha0.negate());
+		// 1: prod(u'_i^e'_i) * Enc(1, -r) == t_1 * prod(u_i^e_i)^c, with Enc(1, -r) = (g^-r, pk^-r)
+		batch.add(generator, alpha1.multiply(r).negate());
+		batch.add(this.encryptionPK, alpha2.multiply(r).negate());
+		batch.add(t1.getAt(0), alpha1.negate());
+		batch.add(t1.getAt(1), alpha2.negate());
+		for (int i = 0; i < this.getSize(); i++) {
+			final BigInteger ePrime = (BigInteger) ePrimeV.getAt(i).getValue();
+			final BigInteger ce = c.multiply((BigInteger) eV.getAt(i).getValue());
+			final Tuple u = (Tuple) uV.getAt(i);
+			final Tuple uPrime = (Tuple) uPrimeV.getAt(i);
+
+			batch.add(gV.getAt(i), alpha0.multiply(ePrime));
+			batch.add(cPiV.getAt(i), alpha0.multiply(ce).negate());
+			batch.add(uPrime.getAt(0), alpha1.multiply(ePrime));
+			batch.add(uPrime.getAt(1), alpha2.multiply(ePrime));
+			batch.add(u.getAt(0), alpha1.multiply(ce).negate());
+			batch.add(u.getAt(1), alpha2.multiply(ce).negate());
+		}
+
+		return batch.verify();
+	}
+
 	//===================================================================================
 	// Nested class PreimageProofFunction
 	//
@@ -344,8 +406,7 @@ public class ReEncryptionShuffleProofSystem
 		// drb
 		// Tuple independentGenerators = Tuple.getInstance(
 		//	   elgamal.getCyclicGroup().getIndependentGenerators(randomByteSequence).limit(size + 1));
-		Tuple independentGenerators = Tuple.getInstance(((GStarMod) elgamal.getCyclicGroup())
-			.getIndependentGeneratorsFIPS(0, size + 1));
+		Tuple independentGenerators = org.nvotes.libmix.Util.getIndependentGenerators(elgamal.getCyclicGroup(), 0, size + 1);
 
 		return getInstance(sigmaChallengeGenerator, eValuesGenerator, independentGenerators,
 						   elgamal, encryptionPK, kr);
@@ -1,4 +1,4 @@
-// drb MPBridge.run
+// drb MPBridge.run, fixed base precomputation, multi-exponentiation commitment function
 /*
  * UniCrypt
  *
@@ -45,11 +45,15 @@ package ch.bfh.unicrypt.crypto.schemes.commitment.classes;
 import ch.bfh.unicrypt.crypto.schemes.commitment.abstracts.AbstractRandomizedCommitmentScheme;
 import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteSequence;
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZMod;
+import ch.bfh.unicrypt.helper.random.RandomByteSequence;
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductGroup;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet;
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.function.abstracts.AbstractFunction;
 import ch.bfh.unicrypt.math.function.classes.ApplyFunction;
 import ch.bfh.unicrypt.math.function.classes.CompositeFunction;
 import ch.bfh.unicrypt.math.function.classes.GeneratorFunction;
@@ -73,6 +77,8 @@ public class GeneralizedPedersenCommitmentScheme
 		this.size = size;
 		this.randomizationGenerator = randomizationGenerator;
 		this.messageGenerators = messageGenerators;
+		// drb
+		MPBridge.precompute(randomizationGenerator);
 	}
 
 	public final CyclicGroup getCyclicGroup() {
@@ -93,9 +99,13 @@ public class GeneralizedPedersenCommitmentScheme
 
 	@Override
 	protected Function abstractGetCommitmentFunction() {
+		// drb
+		if (MPBridge.isMultiExp() && this.cyclicGroup instanceof GStarMod) {
+			return new MultiExpCommitmentFunction();
+		}
 		final Function[] generatorFunctions = new Function[this.size];
 
-		MPBridge.run(() -> {
+		MPBridge.run("GeneralizedPedersenCommitmentScheme.generators", () -> {
 			for (int i = 0; i < this.size; i++) {
 				generatorFunctions[i] = GeneratorFunction.getInstance(this.messageGenerators.getAt(i));
 			}
@@ -147,4 +157,34 @@ public class GeneralizedPedersenCommitmentScheme
 		return new GeneralizedPedersenCommitmentScheme(cycicGroup, size, randomizationGenerator, messageGenerators);
 	}
 
+	// drb computes Prod(g_i^m_i) * h^r as a single multi-exponentiation
+	private class MultiExpCommitmentFunction
+		   extends AbstractFunction<MultiExpCommitmentFunction, ProductSet, Pair, CyclicGroup, Element> {
+
+		private final Tuple bases;
+
+		protected MultiExpCommitmentFunction() {
+			super(ProductSet.getInstance(messageSpace, randomizationSpace), commitmentSpace);
+			final Element[] elements = new Element[size + 1];
+			for (int i = 0; i < size; i++) {
+				elements[i] = messageGenerators.getAt(i);
+			}
+			elements[size] = randomizationGenerator;
+			this.bases = Tuple.getInstance(elements);
+		}
+
+		@Override
+		protected Element abstractApply(Pair element, RandomByteSequence randomByteSequence) {
+			final Tuple messages = (Tuple) element.getFirst();
+			final Element[] exponents = new Element[size + 1];
+			for (int i = 0; i < size; i++) {
+				exponents[i] = messages.getAt(i);
+			}
+			exponents[size] = element.getSecond();
+
+			return MPBridge.multiExp(this.bases, Tuple.getInstance(exponents));
+		}
+
+	}
+
 }
@@ -1,4 +1,4 @@
-// drb MPBridge.run and generators
+// drb MPBridge.run and generators, fixed base precomputation, single pass extraction, chunked extraction, elliptic curve generators
 /*
  * UniCrypt
  *
@@ -59,6 +59,8 @@ import ch.bfh.unicrypt.math.function.interfaces.Function;
 
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup;
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import java.math.BigInteger;
 import org.nvotes.libmix.mpservice.MPBridge;
 
 //
@@ -84,6 +86,8 @@ public class PermutationCommitmentScheme
 		this.size = size;
 		this.randomizationGenerator = randomizationGenerator;
 		this.messageGenerators = messageGenerators;
+		// drb
+		MPBridge.precompute(randomizationGenerator);
 	}
 
 	@Override
@@ -118,11 +122,11 @@ public class PermutationCommitmentScheme
 			throw new IllegalArgumentException();
 		}
 		// Element randomizationGenerator = cyclicGroup.getIndependentGenerators(randomByteSequence).get(0);
-		Element randomizationGenerator = ((GStarMod) cyclicGroup).getIndependentGeneratorsFIPS(0, 1).getAt(0);
+		Element randomizationGenerator = org.nvotes.libmix.Util.getIndependentGenerators(cyclicGroup, 0, 1).getAt(0);
 		// drb
 		// Tuple messageGenerators = Tuple.getInstance(cyclicGroup.getIndependentGenerators(randomByteSequence).skip(1).
 		// 	   limit(size));
-		Tuple messageGenerators = Tuple.getInstance(((GStarMod) cyclicGroup).getIndependentGeneratorsFIPS(1, size));
+		Tuple messageGenerators = org.nvotes.libmix.Util.getIndependentGenerators(cyclicGroup, 1, size);
 
 		return new PermutationCommitmentScheme(cyclicGroup, size, randomizationGenerator, messageGenerators);
 	}
@@ -153,13 +157,40 @@ public class PermutationCommitmentScheme
 			final Tuple randomizations = (Tuple) element.getSecond();
 			final Element[] ret = new Element[size];
 
-			MPBridge.run(() -> {
-				for (int i = 0; i < size; i++) {
+			// drb requests the randomization powers, multiplies after they are computed
+			if (MPBridge.isDeferred() && randomizationGenerator instanceof GStarModElement) {
+				final GStarModElement generator = (GStarModElement) randomizationGenerator;
+				final GStarMod group = generator.getSet();
+				// drb in chunks of at most libmix.max-inflight modpows, one per index
+				final int step = MPBridge.chunkIndices(size, 1);
+				for (int from = 0; from < size; from += step) {
+					final int lo = from;
+					final int hi = Math.min(from + step, size);
+					MPBridge.defer("PermutationCommitmentScheme.commit", () -> {
+						final MPBridge.Deferred[] powers = new MPBridge.Deferred[hi - lo];
+						for (int i = lo; i < hi; i++) {
+							BigInteger exponent = ((BigInteger) randomizations.getAt(i).getValue()).mod(group.getOrder());
+							powers[i - lo] = MPBridge.deferModPow(generator.getValue(), exponent, group.getModulus());
+						}
+						return () -> {
+							for (int i = lo; i < hi; i++) {
+								GStarModElement messageGenerator = (GStarModElement) messageGenerators.getAt(permutation.permute(i));
+								ret[i] = group.getElementUnchecked(
+									   powers[i - lo].get().multiply(messageGenerator.getValue()).mod(group.getModulus()));
+							}
+							return ret;
+						};
+					});
+				}
+				return Tuple.getInstance(ret);
+			}
+
+			MPBridge.runChunked("PermutationCommitmentScheme.commit", size, (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
 					ret[i] = randomizationGenerator.selfApply(randomizations.getAt(i)).apply(
 					   messageGenerators.getAt(permutation.permute(i)));
 				}
-				return ret;
-			}, "2");
+			});
 
 			return Tuple.getInstance(ret);
 		}
@@ -1,4 +1,4 @@
-// drb MPBridge.run
+// drb MPBridge.run, chunked extraction
 /*
  * UniCrypt
  *
@@ -257,12 +257,12 @@ public class ProductSemiGroup
 		final Element[] results = new Element[this.getArity()];
 		// this comes from PermutationCommitmentProofSystem:333
 		if(this.getArity() > 2) {
-			MPBridge.run(() -> {
-				for (int i : this.getAllIndices()) {
+			// drb in chunks of at most libmix.max-inflight modpows
+			MPBridge.runChunked("ProductSemiGroup.selfApply", this.getArity(), (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
 					results[i] = tuple.getAt(i).selfApply(amount);
 				}
-				return results;
-			}, "2");
+			});
 		}
 		else {
 			for (int i : this.getAllIndices()) {
@@ -1,4 +1,4 @@
-// drb modpow
+// drb modpow, unchecked elements
 // drb backported FIPS 186-4 getIndependentGenerators from unicrypt
 // see commit https://github.com/bfh-evg/unicrypt/commit/c0ba0cc56058b7bac5c0446b3fff0e5623622f35
 // TODO hook up this implementation to the shuffling code
@@ -262,6 +262,18 @@ public class GStarMod
 		return new GStarModElement(this, value);
 	}
 
+	// drb
+	/**
+	 * Returns the element with the given value without checking membership. Only for values that are known to be
+	 * members, such as the results of group operations on members computed outside the group.
+	 * <p>
+	 * @param value The value of the element
+	 * @return The element
+	 */
+	public final GStarModElement getElementUnchecked(BigInteger value) {
+		return this.abstractGetElement(value);
+	}
+
 	@Override
 	protected Converter<BigInteger, BigInteger> abstractGetBigIntegerConverter() {
 		return BigIntegerToBigInteger.getInstance(0);
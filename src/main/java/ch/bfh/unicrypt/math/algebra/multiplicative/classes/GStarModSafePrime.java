@@ -1,4 +1,4 @@
-// drb legendre
+// drb legendre, bulk membership
 /*
  * UniCrypt
  *
@@ -79,6 +79,17 @@ public class GStarModSafePrime
 			   // && MathUtil.legendreSymbol(value, this.modulus) == 1;
 	}
 
+	// drb
+	/**
+	 * Returns true if all values are elements of this group, checking them at once.
+	 * <p>
+	 * @param values The values
+	 * @return {@code true} if all values are contained
+	 */
+	public boolean containsAll(BigInteger... values) {
+		return org.nvotes.libmix.Util.areMembers(values, this.modulus);
+	}
+
 	public static GStarModSafePrime getInstance(final long modulus) {
 		return GStarModSafePrime.getInstance(BigInteger.valueOf(modulus));
 	}
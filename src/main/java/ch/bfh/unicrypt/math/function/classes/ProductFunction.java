@@ -1,4 +1,4 @@
-// drb MPBridge.run
+// drb MPBridge.run, chunked extraction
 /*
  * UniCrypt
  *
@@ -87,12 +87,12 @@ public final class ProductFunction
 		final Element[] elements = new Element[this.getArity()];
 
 		if(this.getAt(0) instanceof GeneratorFunction ) {
-			MPBridge.run(() -> {
-				for (int i : this.getAllIndices()) {
+			// drb in chunks of at most libmix.max-inflight modpows
+			MPBridge.runChunked("ProductFunction.apply", this.getArity(), (lo, hi) -> {
+				for (int i = lo; i < hi; i++) {
 					elements[i] = this.getAt(i).apply(element.getAt(i), randomByteSequence);
 				}
-				return elements;
-			}, "2");
+			});
 
 		}
 		else {
@@ -0,0 +1,246 @@
+package org.nvotes.libmix.ec;
+
+import ch.bfh.unicrypt.helper.math.Point;
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModElement;
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModPrime;
+import ch.bfh.unicrypt.math.algebra.additive.parameters.ECZModPrimeParameters;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModPrime;
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  Elliptic curve over a prime field with fast scalar multiplication.
+ *
+ *  The same group, elements and string conversions as unicrypt's ECZModPrime, which adds points
+ *  in affine coordinates with BigIntegers and one field inversion per addition. Here scalar
+ *  multiplications (self application) and multi scalar multiplications are instead computed in
+ *  jacobian coordinates, with fixed windows and a single inversion at the end. Field arithmetic is
+ *  montgomery multiplication on 64 bit limbs, see Montgomery.
+ *
+ *  Use getInstance to obtain the group for standard parameters, for example SECP256r1.
+ */
+public class JacobianECZModPrime extends ECZModPrime {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Window size, the table holds 2^WINDOW multiples per point */
+    private static final int WINDOW = 4;
+
+    private static final Map<ECZModPrimeParameters, JacobianECZModPrime> instances = new HashMap<>();
+
+    private final ZModPrime field;
+    private final BigInteger p;
+    private final Montgomery montgomery;
+    /** The curve parameter a and 1, in montgomery form */
+    private final long[] a;
+    private final long[] one;
+
+    protected JacobianECZModPrime(ZModPrime finiteField, ZModElement a, ZModElement b, ZModElement gx, ZModElement gy,
+        BigInteger subGroupOrder, BigInteger coFactor) {
+
+        super(finiteField, a, b, gx, gy, subGroupOrder, coFactor);
+        this.field = finiteField;
+        this.p = finiteField.getModulus();
+        this.montgomery = new Montgomery(this.p);
+        this.a = montgomery.toMontgomery(a.getValue());
+        this.one = montgomery.toMontgomery(BigInteger.ONE);
+    }
+
+    /**
+     *  Returns the curve with the given standard parameters.
+     */
+    public static synchronized JacobianECZModPrime getInstance(ECZModPrimeParameters params) {
+        JacobianECZModPrime instance = instances.get(params);
+        if(instance == null) {
+            instance = new JacobianECZModPrime(params.getFiniteField(), params.getA(), params.getB(), params.getGx(),
+                params.getGy(), params.getSubGroupOrder(), params.getCoFactor());
+            instances.put(params, instance);
+        }
+
+        return instance;
+    }
+
+    @Override
+    protected ECZModElement defaultSelfApplyAlgorithm(final ECZModElement element, final BigInteger posExponent) {
+        return this.multiply(new ECZModElement[] {element}, new BigInteger[] {posExponent});
+    }
+
+    @Override
+    protected ECZModElement defaultMultiSelfApply(final Element[] elements, final BigInteger[] amounts) {
+        if(elements.length == 0) {
+            return this.getIdentityElement();
+        }
+        ECZModElement[] points = new ECZModElement[elements.length];
+        BigInteger[] scalars = new BigInteger[elements.length];
+        for(int i = 0; i < elements.length; i++) {
+            points[i] = (ECZModElement) elements[i];
+            // multiples of the order are the identity, negative amounts are reduced into [0, order)
+            scalars[i] = amounts[i].mod(this.getOrder());
+        }
+
+        return this.multiply(points, scalars);
+    }
+
+    /**
+     *  Computes the sum of points[i] * scalars[i], scalars must be non negative.
+     *
+     *  All scalars share the same sequence of doublings (Straus), only the table entries added differ.
+     */
+    private ECZModElement multiply(ECZModElement[] points, BigInteger[] scalars) {
+        final long[] t = new long[montgomery.getLength() + 2];
+        int bits = 1;
+        long[][][][] tables = new long[points.length][][][];
+        for(int i = 0; i < points.length; i++) {
+            bits = Math.max(bits, scalars[i].bitLength());
+            // table[k] = k * point, table[0] is the point at infinity
+            long[][][] table = new long[1 << WINDOW][][];
+            table[0] = infinity();
+            table[1] = points[i].isIdentity() ? infinity() : new long[][] {
+                montgomery.toMontgomery(points[i].getX().getValue()),
+                montgomery.toMontgomery(points[i].getY().getValue()), one};
+            table[2] = twice(table[1], t);
+            for(int k = 3; k < table.length; k++) {
+                table[k] = add(table[k - 1], table[1], t);
+            }
+            tables[i] = table;
+        }
+
+        long[][] acc = infinity();
+        int windows = (bits + WINDOW - 1) / WINDOW;
+        for(int w = windows - 1; w >= 0; w--) {
+            for(int k = 0; k < WINDOW; k++) {
+                acc = twice(acc, t);
+            }
+            for(int i = 0; i < points.length; i++) {
+                int value = window(scalars[i], w);
+                if(value != 0) {
+                    acc = add(acc, tables[i][value], t);
+                }
+            }
+        }
+
+        return toAffine(acc);
+    }
+
+    /** Returns the w-th WINDOW bit digit of the scalar */
+    private static int window(BigInteger scalar, int w) {
+        int value = 0;
+        for(int k = WINDOW - 1; k >= 0; k--) {
+            value = (value << 1) | (scalar.testBit(w * WINDOW + k) ? 1 : 0);
+        }
+
+        return value;
+    }
+
+    /**
+     *  The point at infinity, any point with Z = 0.
+     *
+     *  Points are (X, Y, Z) in montgomery form, for the affine point (X / Z^2, Y / Z^3).
+     */
+    private long[][] infinity() {
+        return new long[][] {one, one, new long[montgomery.getLength()]};
+    }
+
+    private static boolean isZero(long[] a) {
+        for(long limb: a) {
+            if(limb != 0) return false;
+        }
+
+        return true;
+    }
+
+    /** Returns 2q, t is scratch space for montgomery multiplication */
+    private long[][] twice(long[][] q, long[] t) {
+        if(isZero(q[2]) || isZero(q[1])) {
+            return infinity();
+        }
+        long[] xx = mul(q[0], q[0], t);
+        long[] yy = mul(q[1], q[1], t);
+        long[] yyyy = mul(yy, yy, t);
+        long[] zz = mul(q[2], q[2], t);
+        // s = 4 X YY, m = 3 XX + a ZZ^2
+        long[] s = mul(q[0], yy, t);
+        montgomery.add(s, s, s);
+        montgomery.add(s, s, s);
+        long[] m = mul(a, mul(zz, zz, t), t);
+        montgomery.add(m, xx, m);
+        montgomery.add(m, xx, m);
+        montgomery.add(m, xx, m);
+        // X3 = m^2 - 2 s, Y3 = m (s - X3) - 8 YYYY, Z3 = 2 Y Z
+        long[] x3 = mul(m, m, t);
+        montgomery.subtract(x3, s, x3);
+        montgomery.subtract(x3, s, x3);
+        long[] d = new long[yyyy.length];
+        montgomery.subtract(s, x3, d);
+        long[] y3 = mul(m, d, t);
+        montgomery.add(yyyy, yyyy, yyyy);
+        montgomery.add(yyyy, yyyy, yyyy);
+        montgomery.add(yyyy, yyyy, yyyy);
+        montgomery.subtract(y3, yyyy, y3);
+        long[] z3 = mul(q[1], q[2], t);
+        montgomery.add(z3, z3, z3);
+
+        return new long[][] {x3, y3, z3};
+    }
+
+    /** Returns q1 + q2, t is scratch space for montgomery multiplication */
+    private long[][] add(long[][] q1, long[][] q2, long[] t) {
+        if(isZero(q1[2])) {
+            return q2;
+        }
+        if(isZero(q2[2])) {
+            return q1;
+        }
+        long[] z1z1 = mul(q1[2], q1[2], t);
+        long[] z2z2 = mul(q2[2], q2[2], t);
+        long[] u1 = mul(q1[0], z2z2, t);
+        long[] u2 = mul(q2[0], z1z1, t);
+        long[] s1 = mul(mul(q1[1], q2[2], t), z2z2, t);
+        long[] s2 = mul(mul(q2[1], q1[2], t), z1z1, t);
+        long[] h = new long[u1.length];
+        montgomery.subtract(u2, u1, h);
+        long[] r = new long[u1.length];
+        montgomery.subtract(s2, s1, r);
+        if(isZero(h)) {
+            return isZero(r) ? twice(q1, t) : infinity();
+        }
+        long[] hh = mul(h, h, t);
+        long[] hhh = mul(h, hh, t);
+        long[] v = mul(u1, hh, t);
+        // X3 = r^2 - HHH - 2 V, Y3 = r (V - X3) - S1 HHH, Z3 = Z1 Z2 H
+        long[] x3 = mul(r, r, t);
+        montgomery.subtract(x3, hhh, x3);
+        montgomery.subtract(x3, v, x3);
+        montgomery.subtract(x3, v, x3);
+        montgomery.subtract(v, x3, v);
+        long[] y3 = mul(r, v, t);
+        montgomery.subtract(y3, mul(s1, hhh, t), y3);
+        long[] z3 = mul(mul(q1[2], q2[2], t), h, t);
+
+        return new long[][] {x3, y3, z3};
+    }
+
+    /** Returns a * b in montgomery form */
+    private long[] mul(long[] a, long[] b, long[] t) {
+        long[] ret = new long[a.length];
+        montgomery.mul(a, b, ret, t);
+
+        return ret;
+    }
+
+    private ECZModElement toAffine(long[][] q) {
+        if(isZero(q[2])) {
+            return this.getIdentityElement();
+        }
+        BigInteger zInv = montgomery.fromMontgomery(q[2]).modInverse(p);
+        BigInteger zInv2 = zInv.multiply(zInv).mod(p);
+        BigInteger x = montgomery.fromMontgomery(q[0]).multiply(zInv2).mod(p);
+        BigInteger y = montgomery.fromMontgomery(q[1]).multiply(zInv2).mod(p).multiply(zInv).mod(p);
+
+        return this.abstractGetElement(Point.getInstance(field.getElement(x), field.getElement(y)));
+    }
+}
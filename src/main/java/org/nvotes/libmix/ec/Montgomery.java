@@ -0,0 +1,229 @@
+package org.nvotes.libmix.ec;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ *  Pure java field arithmetic for a fixed odd modulus, see JacobianECZModPrime.
+ *
+ *  Numbers are held as little endian arrays of 64 bit limbs, read as unsigned, the
+ *  high half of limb products is computed with Math.multiplyHigh. Multiplication is
+ *  Montgomery multiplication (CIOS). The context (modulus limbs, -m^-1 mod 2^64,
+ *  R^2 mod m) is computed once per modulus.
+ *
+ *  Modular exponentiation is left to BigInteger.modPow, whose montgomery intrinsics
+ *  are faster than these limb loops.
+ *
+ *  Instances are immutable and can be shared between threads.
+ */
+public final class Montgomery {
+    private final BigInteger modulus;
+    private final int n;
+    private final long[] m;
+    private final long mInv;
+    private final long[] r2;
+
+    public Montgomery(BigInteger modulus) {
+        if(modulus.signum() <= 0 || !modulus.testBit(0)) {
+            throw new IllegalArgumentException("Modulus must be positive and odd");
+        }
+        this.modulus = modulus;
+        this.n = (modulus.bitLength() + 63) / 64;
+        this.m = toLimbs(modulus, n);
+
+        // Newton iteration for m^-1 mod 2^64, each step doubles the correct bits
+        long inv = 1;
+        for(int k = 0; k < 6; k++) {
+            inv = inv * (2 - m[0] * inv);
+        }
+        this.mInv = -inv;
+        this.r2 = toLimbs(BigInteger.ONE.shiftLeft(128 * n).mod(modulus), n);
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     *  Returns the number of 64 bit limbs of numbers in this context.
+     */
+    public int getLength() {
+        return n;
+    }
+
+    /**
+     *  Returns value * R mod m, the montgomery form of value, which must be non negative.
+     */
+    public long[] toMontgomery(BigInteger value) {
+        if(value.compareTo(modulus) >= 0) {
+            value = value.mod(modulus);
+        }
+        long[] ret = new long[n];
+        mul(toLimbs(value, n), r2, ret, new long[n + 2]);
+
+        return ret;
+    }
+
+    /**
+     *  Returns a * R^-1 mod m, the value of a number in montgomery form.
+     */
+    public BigInteger fromMontgomery(long[] a) {
+        long[] unit = new long[n];
+        unit[0] = 1;
+        long[] ret = new long[n];
+        mul(a, unit, ret, new long[n + 2]);
+
+        return fromLimbs(ret);
+    }
+
+    /**
+     *  Computes a * b * R^-1 mod m into result, t is scratch space of n + 2 limbs.
+     *
+     *  a and b must be less than m, result must not be a or b.
+     */
+    public void mul(long[] a, long[] b, long[] result, long[] t) {
+        final int n = this.n;
+        final long[] m = this.m;
+        Arrays.fill(t, 0);
+        for(int i = 0; i < n; i++) {
+            final long bi = b[i];
+            long c = 0;
+            for(int j = 0; j < n; j++) {
+                // (hi, lo) = t[j] + a[j] * bi + c, at most 2^128 - 1
+                long lo = a[j] * bi;
+                long hi = multiplyHighUnsigned(a[j], bi);
+                lo += t[j];
+                if(Long.compareUnsigned(lo, t[j]) < 0) hi++;
+                lo += c;
+                if(Long.compareUnsigned(lo, c) < 0) hi++;
+                t[j] = lo;
+                c = hi;
+            }
+            long s = t[n] + c;
+            t[n + 1] = Long.compareUnsigned(s, c) < 0 ? 1 : 0;
+            t[n] = s;
+
+            final long u = t[0] * mInv;
+            long lo = u * m[0];
+            long hi = multiplyHighUnsigned(u, m[0]);
+            lo += t[0];
+            if(Long.compareUnsigned(lo, t[0]) < 0) hi++;
+            c = hi;
+            for(int j = 1; j < n; j++) {
+                lo = u * m[j];
+                hi = multiplyHighUnsigned(u, m[j]);
+                lo += t[j];
+                if(Long.compareUnsigned(lo, t[j]) < 0) hi++;
+                lo += c;
+                if(Long.compareUnsigned(lo, c) < 0) hi++;
+                t[j - 1] = lo;
+                c = hi;
+            }
+            s = t[n] + c;
+            t[n - 1] = s;
+            t[n] = t[n + 1] + (Long.compareUnsigned(s, c) < 0 ? 1 : 0);
+        }
+
+        if(t[n] != 0 || !less(t, m, n)) {
+            subtractLimbs(t, m, result);
+        }
+        else {
+            System.arraycopy(t, 0, result, 0, n);
+        }
+    }
+
+    /**
+     *  Computes a + b mod m into result, which may be a or b.
+     *
+     *  a and b must be less than m.
+     */
+    public void add(long[] a, long[] b, long[] result) {
+        long carry = 0;
+        for(int j = 0; j < n; j++) {
+            long s = a[j] + b[j];
+            long c = Long.compareUnsigned(s, a[j]) < 0 ? 1 : 0;
+            s += carry;
+            if(Long.compareUnsigned(s, carry) < 0) c = 1;
+            result[j] = s;
+            carry = c;
+        }
+        if(carry != 0 || !less(result, m, n)) {
+            subtractLimbs(result, m, result);
+        }
+    }
+
+    /**
+     *  Computes a - b mod m into result, which may be a or b.
+     *
+     *  a and b must be less than m.
+     */
+    public void subtract(long[] a, long[] b, long[] result) {
+        if(subtractLimbs(a, b, result) != 0) {
+            long carry = 0;
+            for(int j = 0; j < n; j++) {
+                long s = result[j] + m[j];
+                long c = Long.compareUnsigned(s, result[j]) < 0 ? 1 : 0;
+                s += carry;
+                if(Long.compareUnsigned(s, carry) < 0) c = 1;
+                result[j] = s;
+                carry = c;
+            }
+        }
+    }
+
+    /**
+     *  Computes a - b into result as n limb numbers, returns the borrow out.
+     */
+    private long subtractLimbs(long[] a, long[] b, long[] result) {
+        long borrow = 0;
+        for(int j = 0; j < n; j++) {
+            long aj = a[j];
+            long d = aj - b[j] - borrow;
+            borrow = (Long.compareUnsigned(aj, b[j]) < 0 || (aj == b[j] && borrow != 0)) ? 1 : 0;
+            result[j] = d;
+        }
+
+        return borrow;
+    }
+
+    /**
+     *  Returns the high 64 bits of the unsigned product of a and b.
+     */
+    private static long multiplyHighUnsigned(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    /**
+     *  Returns true if the first n limbs of a are less than b, as unsigned numbers.
+     */
+    private static boolean less(long[] a, long[] b, int n) {
+        for(int j = n - 1; j >= 0; j--) {
+            if(a[j] != b[j]) return Long.compareUnsigned(a[j], b[j]) < 0;
+        }
+
+        return false;
+    }
+
+    private static long[] toLimbs(BigInteger value, int n) {
+        byte[] bytes = value.toByteArray();
+        long[] limbs = new long[n];
+        for(int k = 0; k < bytes.length && k / 8 < n; k++) {
+            limbs[k / 8] |= (bytes[bytes.length - 1 - k] & 0xFFL) << (8 * (k % 8));
+        }
+
+        return limbs;
+    }
+
+    private BigInteger fromLimbs(long[] limbs) {
+        byte[] bytes = new byte[8 * n];
+        for(int k = 0; k < n; k++) {
+            long v = limbs[k];
+            int o = 8 * (n - 1 - k);
+            for(int b = 0; b < 8; b++) {
+                bytes[o + b] = (byte) (v >>> (56 - 8 * b));
+            }
+        }
+
+        return new BigInteger(1, bytes);
+    }
+}
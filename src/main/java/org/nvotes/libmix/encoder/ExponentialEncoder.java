@@ -0,0 +1,139 @@
+package org.nvotes.libmix.encoder;
+
+import ch.bfh.unicrypt.crypto.encoder.abstracts.AbstractEncoder;
+import ch.bfh.unicrypt.helper.random.RandomByteSequence;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZMod;
+import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import ch.bfh.unicrypt.math.function.abstracts.AbstractFunction;
+import ch.bfh.unicrypt.math.function.interfaces.Function;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Encodes the integers 0 .. bound - 1 as powers of a generator, m -> g^m.
+ *
+ *  For Schnorr groups (GStarModPrime), where the subgroup order q is much smaller than the
+ *  modulus and there is no embedding of integers like ZModPrimeToGStarModSafePrime. Decoding
+ *  is a table lookup, the table of powers is extended on demand up to the largest value decoded,
+ *  so the bound only limits the search for elements that are not an encoding.
+ *
+ *  Use getInstance to share the table between callers.
+ */
+public class ExponentialEncoder extends AbstractEncoder<ZMod, ZModElement, GStarMod, GStarModElement> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Map<List<Object>, ExponentialEncoder> instances = new HashMap<>();
+
+    private final GStarModElement generator;
+    private final int bound;
+
+    /** Powers of the generator found so far, table.get(g^m) = m */
+    private final Map<BigInteger, Integer> table = new HashMap<>();
+    private BigInteger last;
+
+    protected ExponentialEncoder(GStarModElement generator, int bound) {
+        this.generator = generator;
+        this.bound = bound;
+        this.last = BigInteger.ONE;
+        this.table.put(this.last, 0);
+    }
+
+    /**
+     *  Returns the encoder for plaintexts below bound with the given generator.
+     */
+    public static synchronized ExponentialEncoder getInstance(GStarModElement generator, int bound) {
+        if(generator == null || !generator.isGenerator() || bound < 1) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> key = Arrays.asList(generator, bound);
+        ExponentialEncoder instance = instances.get(key);
+        if(instance == null) {
+            instance = new ExponentialEncoder(generator, bound);
+            instances.put(key, instance);
+        }
+
+        return instance;
+    }
+
+    public GStarModElement getGenerator() {
+        return this.generator;
+    }
+
+    public int getBound() {
+        return this.bound;
+    }
+
+    @Override
+    protected Function abstractGetEncodingFunction() {
+        return new EncodingFunction(ZMod.getInstance(this.bound), this.generator);
+    }
+
+    @Override
+    protected Function abstractGetDecodingFunction() {
+        return new DecodingFunction(this.generator.getSet(), ZMod.getInstance(this.bound), this);
+    }
+
+    /**
+     *  Returns m such that g^m = value, extending the table as needed.
+     */
+    private synchronized int log(BigInteger value) {
+        Integer ret = this.table.get(value);
+        BigInteger g = this.generator.getValue();
+        BigInteger modulus = this.generator.getSet().getModulus();
+        while(ret == null && this.table.size() < this.bound) {
+            this.last = this.last.multiply(g).mod(modulus);
+            this.table.put(this.last, this.table.size());
+            if(this.last.equals(value)) {
+                ret = this.table.size() - 1;
+            }
+        }
+        if(ret == null) {
+            throw new IllegalArgumentException("Element is not an encoding of a value below " + this.bound);
+        }
+
+        return ret;
+    }
+
+    static private class EncodingFunction
+           extends AbstractFunction<EncodingFunction, ZMod, ZModElement, GStarMod, GStarModElement> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final GStarModElement generator;
+
+        protected EncodingFunction(ZMod domain, GStarModElement generator) {
+            super(domain, generator.getSet());
+            this.generator = generator;
+        }
+
+        @Override
+        protected GStarModElement abstractApply(ZModElement element, RandomByteSequence randomByteSequence) {
+            return this.generator.selfApply(element.getValue());
+        }
+    }
+
+    static private class DecodingFunction
+           extends AbstractFunction<DecodingFunction, GStarMod, GStarModElement, ZMod, ZModElement> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ExponentialEncoder encoder;
+
+        protected DecodingFunction(GStarMod domain, ZMod coDomain, ExponentialEncoder encoder) {
+            super(domain, coDomain);
+            this.encoder = encoder;
+        }
+
+        @Override
+        protected ZModElement abstractApply(GStarModElement element, RandomByteSequence randomByteSequence) {
+            return this.getCoDomain().getElement(this.encoder.log(element.getValue()));
+        }
+    }
+}
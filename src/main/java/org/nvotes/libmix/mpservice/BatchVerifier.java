@@ -0,0 +1,63 @@
+package org.nvotes.libmix.mpservice;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+
+/**
+ *  Small exponent batch verification (Bellare, Garay, Rabin).
+ *
+ *  Equations of the form left == right in a prime order GStarMod group are
+ *  raised to random exponents of the given bit length and multiplied together,
+ *  so that they can be checked with a single multi-exponentiation. A false
+ *  equation is accepted with probability at most 2^-bits.
+ *
+ *  Callers move every term to one side, adding base^(alpha * exponent) for terms of
+ *  the left side and base^(-alpha * exponent) for terms of the right side, using a fresh
+ *  alpha for each equation. All bases must be members of the group.
+ */
+public class BatchVerifier {
+
+    private final static SecureRandom random = new SecureRandom();
+
+    private final GStarMod group;
+    private final int bits;
+
+    private final ArrayList<BigInteger> bases = new ArrayList<BigInteger>();
+    private final ArrayList<BigInteger> exps = new ArrayList<BigInteger>();
+
+    public BatchVerifier(GStarMod group, int bits) {
+        if(bits < 1) throw new IllegalArgumentException("bits = " + bits);
+        this.group = group;
+        this.bits = bits;
+    }
+
+    /**
+     *  Returns a fresh random exponent for one equation.
+     */
+    public BigInteger getRandom() {
+        return new BigInteger(this.bits, random);
+    }
+
+    /**
+     *  Adds base^exponent to the product, the exponent may be negative.
+     */
+    public void add(Element base, BigInteger exponent) {
+        this.bases.add(((GStarModElement) base).getValue());
+        this.exps.add(exponent.mod(this.group.getOrder()));
+    }
+
+    /**
+     *  Returns true if the product of all added terms is the identity.
+     */
+    public boolean verify() {
+        BigInteger[] b = this.bases.toArray(new BigInteger[0]);
+        BigInteger[] e = this.exps.toArray(new BigInteger[0]);
+
+        return MPService.multiExp(b, e, this.group.getModulus()).equals(BigInteger.ONE);
+    }
+}
@@ -0,0 +1,53 @@
+package org.nvotes.libmix.mpservice;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ *  Flight recorder event for one MPBridge extraction scope.
+ *
+ *  Only loaded if the JVM provides jdk.jfr, see ExtractionMetrics.
+ */
+@Name("org.nvotes.libmix.Extraction")
+@Label("Modpow Extraction")
+@Category("libmix")
+@StackTrace(false)
+public class ExtractionEvent extends Event {
+
+    @Label("Site")
+    String site;
+
+    @Label("Modpows")
+    int modPows;
+
+    @Label("Record")
+    @Timespan(Timespan.NANOSECONDS)
+    long record;
+
+    @Label("Compute")
+    @Timespan(Timespan.NANOSECONDS)
+    long compute;
+
+    @Label("Replay")
+    @Timespan(Timespan.NANOSECONDS)
+    long replay;
+
+    /**
+     *  Commits an event if the event type is enabled in a running recording.
+     */
+    static void emit(String site, int modPows, long record, long compute, long replay) {
+        ExtractionEvent event = new ExtractionEvent();
+        if(event.isEnabled()) {
+            event.site = site;
+            event.modPows = modPows;
+            event.record = record;
+            event.compute = compute;
+            event.replay = replay;
+            event.commit();
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package org.nvotes.libmix.mpservice;
 
 import java.util.LinkedList;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 import org.slf4j.Logger;
@@ -13,6 +16,12 @@ import org.slf4j.LoggerFactory;
 import com.squareup.jnagmp.Gmp;
 import org.nvotes.libmix.Util;
 
+import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet;
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple;
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod;
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+
 /**
  *  Bridges modpow calls into a faster implementation, provided by MPService.
  *
@@ -24,17 +33,58 @@ import org.nvotes.libmix.Util;
 public class MPBridge {
     private final static Logger logger = LoggerFactory.getLogger(MPBridge.class);
 
-    private static boolean useGmp = Util.getEnvBoolean("libmix.gmp");
-    private static boolean useExtractor = Util.getEnvBoolean("libmix.extractor");
+    private static boolean useGmp = ModPowServiceRegistry.useGmp();
+    private static volatile boolean useExtractor = Util.getEnvBoolean("libmix.extractor");
+    private static volatile boolean useMultiExp = Util.getEnvBoolean("libmix.multiexp");
+    private static boolean useDeferred = Util.getEnvBoolean("libmix.deferred");
+    private static volatile int pipelineChunk = Util.getEnvInt("libmix.pipeline-chunk", 0);
+    private static volatile int maxInflight = Util.getEnvInt("libmix.max-inflight", 0);
+
+    /**
+     *  Metrics site for runs that are not named.
+     */
+    public static final String DEFAULT_SITE = "MPBridge.run";
 
     private BigInteger dummy = new BigInteger("2");
+
+    /**
+     *  Modulus of the first recorded request, and whether later requests used others.
+     */
     private BigInteger modulus = null;
+    private boolean mixed = false;
 
     private boolean recording = false;
     private boolean replaying = false;
+    private boolean deferring = false;
 
-    private ArrayList<ModPow2> requests = new ArrayList<ModPow2>();
-    private LinkedList<BigInteger> answers = null;
+    /**
+     *  Recorded requests and their results, as parallel arrays that are reused
+     *  across runs. Entries [0, count) are valid, cursor is the replay position.
+     */
+    private BigInteger[] bases = new BigInteger[1024];
+    private BigInteger[] pows = new BigInteger[1024];
+    private BigInteger[] moduli = new BigInteger[1024];
+    private BigInteger[] results = new BigInteger[1024];
+    private int count = 0;
+    private int cursor = 0;
+
+    /**
+     *  Results of the chunks submitted while recording, if pipelining, the
+     *  requests per chunk and the number of requests submitted so far.
+     */
+    private ArrayList<CompletableFuture<BigInteger[]>> chunks = null;
+    private int chunkSize = 0;
+    private int submitted = 0;
+
+    /**
+     *  Non zero while a run is in progress on this thread, nested runs join it.
+     */
+    private int depth = 0;
+
+    /**
+     *  Number of modpows extracted by the last run on this thread.
+     */
+    private int lastCount = 0;
 
     /**
      *  Allows extraction from multithreaded code, creating one
@@ -61,9 +111,10 @@ public class MPBridge {
      */
     public static void startRecord(String value) {
         i().dummy = new BigInteger(value);
-        if(i().requests.size() != 0)    throw new IllegalStateException();
+        if(i().count != 0)    throw new IllegalStateException();
         i().recording = useExtractor;
         i().modulus = null;
+        i().mixed = false;
     }
 
     /**
@@ -77,12 +128,20 @@ public class MPBridge {
 
     /**
      *  Stops the recording, returning all collected modpows.
+     *
+     *  Copies the recorded requests, run uses the recorded arrays directly.
      */
     public static ModPow2[] stopRecord() {
-        i().recording = false;
+        MPBridge i = i();
+        i.recording = false;
+        if(i.mixed) throw new IllegalStateException("Requests with several moduli");
+
+        ModPow2[] ret = new ModPow2[i.count];
+        for(int j = 0; j < i.count; j++) {
+            ret[j] = new ModPow2(i.bases[j], i.pows[j]);
+        }
 
-        // FIXME performance hit due to copying array
-        return i().requests.toArray(new ModPow2[0]);
+        return ret;
     }
 
     /**
@@ -92,26 +151,47 @@ public class MPBridge {
      *  by MPService.
      */
     public static void startReplay(BigInteger[] answers_) {
-        if(answers_.length != i().requests.size()) throw new IllegalArgumentException(answers_.length + "!=" + i().requests.size());
-        i().answers = new LinkedList<BigInteger>(Arrays.asList(answers_));
+        MPBridge i = i();
+        if(answers_.length != i.count) throw new IllegalArgumentException(answers_.length + "!=" + i.count);
+        System.arraycopy(answers_, 0, i.results, 0, i.count);
+
+        startReplay();
+    }
 
-        i().replaying = true;
+    /**
+     *  Starts the replaying phase, with results already written in place.
+     */
+    private static void startReplay() {
+        MPBridge i = i();
+        i.cursor = 0;
+        i.replaying = true;
     }
 
     /**
      *  Stops the replaying phase.
      */
     public static void stopReplay() {
-        if(i().answers.size() != 0) throw new IllegalStateException();
+        MPBridge i = i();
+        if(i.cursor != i.count) throw new IllegalStateException(i.cursor + "!=" + i.count);
 
-        i().replaying = false;
+        i.replaying = false;
     }
 
     /**
      *  Resets this MPBridge instance.
+     *
+     *  The arrays are kept for the next run, but references are cleared.
      */
     public static void reset() {
-        i().requests.clear();
+        MPBridge i = i();
+        Arrays.fill(i.bases, 0, i.count, null);
+        Arrays.fill(i.pows, 0, i.count, null);
+        Arrays.fill(i.moduli, 0, i.count, null);
+        Arrays.fill(i.results, 0, i.count, null);
+        i.count = 0;
+        i.cursor = 0;
+        i.chunks = null;
+        i.submitted = 0;
     }
 
     /**
@@ -120,24 +200,181 @@ public class MPBridge {
     public static void addModPow(BigInteger base, BigInteger pow, BigInteger mod) {
         MPBridge i = i();
         if(!i.recording) throw new IllegalStateException();
-        if(i.modulus == null) {
-            i.modulus = mod;
+        i.add(base, pow, mod);
+        if(i.chunks != null && i.count - i.submitted == i.chunkSize) {
+            i.submitChunk();
+        }
+    }
+
+    /**
+     *  Submits the requests recorded since the last chunk to MPService, without waiting.
+     *
+     *  Requests are copied since the recording arrays may be reallocated.
+     */
+    private void submitChunk() {
+        final int n = count - submitted;
+        final BigInteger[] chunkBases = Arrays.copyOfRange(bases, submitted, count);
+        final BigInteger[] chunkPows = Arrays.copyOfRange(pows, submitted, count);
+        final BigInteger[] chunkModuli = Arrays.copyOfRange(moduli, submitted, count);
+        chunks.add(computeAsync(chunkBases, chunkPows, chunkModuli, n));
+        submitted = count;
+    }
+
+    /**
+     *  Appends a modpow request, returning its index.
+     */
+    private int add(BigInteger base, BigInteger pow, BigInteger mod) {
+        if(modulus == null) {
+            modulus = mod;
+        }
+        else if(!mixed && modulus != mod && !modulus.equals(mod)) {
+            mixed = true;
+        }
+
+        ensureCapacity(count + 1);
+        bases[count] = base;
+        pows[count] = pow;
+        moduli[count] = mod;
+
+        return count++;
+    }
+
+    /**
+     *  Requests grouped by modulus: the distinct moduli in order of first use, and
+     *  for each the indices of its requests.
+     */
+    private static final class Groups {
+        private final BigInteger[] moduli;
+        private final int[][] indices;
+
+        /**
+         *  Groups requests [0, count), returns null if they all have the same modulus.
+         */
+        private static Groups of(BigInteger[] moduli, int count) {
+            int first = 1;
+            while(first < count && (moduli[first] == moduli[0] || moduli[first].equals(moduli[0]))) first++;
+            if(first == count) return null;
+
+            HashMap<BigInteger, Integer> group = new HashMap<BigInteger, Integer>();
+            int[] ids = new int[count];
+            int[] sizes = new int[count];
+            for(int j = 0; j < count; j++) {
+                Integer id = group.get(moduli[j]);
+                if(id == null) {
+                    id = group.size();
+                    group.put(moduli[j], id);
+                }
+                ids[j] = id;
+                sizes[id]++;
+            }
+            if(group.size() < 2) return null;
+
+            Groups ret = new Groups(group.size());
+            for(int k = 0; k < ret.indices.length; k++) {
+                ret.indices[k] = new int[sizes[k]];
+                sizes[k] = 0;
+            }
+            for(int j = 0; j < count; j++) {
+                int k = ids[j];
+                if(sizes[k] == 0) ret.moduli[k] = moduli[j];
+                ret.indices[k][sizes[k]++] = j;
+            }
+
+            return ret;
+        }
+
+        private Groups(int size) {
+            this.moduli = new BigInteger[size];
+            this.indices = new int[size][];
+        }
+
+        private static BigInteger[] gather(BigInteger[] values, int[] indices) {
+            BigInteger[] ret = new BigInteger[indices.length];
+            for(int j = 0; j < indices.length; j++) {
+                ret[j] = values[indices[j]];
+            }
+
+            return ret;
+        }
+
+        private static void scatter(BigInteger[] values, int[] indices, BigInteger[] target) {
+            for(int j = 0; j < indices.length; j++) {
+                target[indices[j]] = values[j];
+            }
+        }
+    }
+
+    /**
+     *  Computes the recorded requests via MPService, in place.
+     *
+     *  Requests with several moduli are computed as one MPService batch per modulus.
+     */
+    private void compute() {
+        Groups groups = mixed ? Groups.of(moduli, count) : null;
+        if(groups == null) {
+            MPService.compute(bases, pows, count, modulus, results);
         }
-        // sanity check
-        else if(!i.modulus.equals(mod)) {
-            throw new RuntimeException(i.modulus + "!=" + mod);
+        else {
+            for(int k = 0; k < groups.moduli.length; k++) {
+                int[] indices = groups.indices[k];
+                BigInteger[] groupResults = new BigInteger[indices.length];
+                MPService.compute(Groups.gather(bases, indices), Groups.gather(pows, indices), indices.length,
+                    groups.moduli[k], groupResults);
+                Groups.scatter(groupResults, indices, results);
+            }
+        }
+    }
+
+    /**
+     *  Computes the given requests via MPService without blocking, one batch per modulus.
+     */
+    private static CompletableFuture<BigInteger[]> computeAsync(BigInteger[] bases, BigInteger[] pows,
+        BigInteger[] moduli, int count) {
+
+        Groups groups = Groups.of(moduli, count);
+        if(groups == null) {
+            return MPService.computeAsync(bases, pows, count, moduli[0], new BigInteger[count]);
         }
 
-        i.requests.add(new ModPow2(base, pow));
+        BigInteger[] ret = new BigInteger[count];
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[groups.moduli.length];
+        for(int k = 0; k < futures.length; k++) {
+            int[] indices = groups.indices[k];
+            futures[k] = MPService.computeAsync(Groups.gather(bases, indices), Groups.gather(pows, indices),
+                indices.length, groups.moduli[k], new BigInteger[indices.length])
+                .thenAccept(groupResults -> Groups.scatter(groupResults, indices, ret));
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(v -> ret);
+    }
+
+    /**
+     *  Grows the recording arrays, doubling their length, to hold at least n requests.
+     */
+    private void ensureCapacity(int n) {
+        if(n > bases.length) {
+            int length = Math.max(bases.length * 2, n);
+            bases = Arrays.copyOf(bases, length);
+            pows = Arrays.copyOf(pows, length);
+            moduli = Arrays.copyOf(moduli, length);
+            results = Arrays.copyOf(results, length);
+        }
     }
 
     /**
      *  Returns a result, as calculated by MPService.
      */
     public static BigInteger getModPow() {
-        if(i().recording) throw new IllegalStateException();
+        MPBridge i = i();
+        if(i.recording) throw new IllegalStateException();
+        if(i.cursor == i.count) throw new IllegalStateException();
 
-        return i().answers.removeFirst();
+        if(i.chunks != null) {
+            int index = i.cursor++;
+            // waits only if this chunk is still being computed
+            return i.chunks.get(index / i.chunkSize).join()[index % i.chunkSize];
+        }
+        return i.results[i.cursor++];
     }
 
     /**
@@ -146,29 +383,396 @@ public class MPBridge {
      *  The closure is first executed in record mode, where modpow requests are saved.
      *  The requests are computed by MPService.
      *  The closure is then executed in replay mode, returning the computed values.
+     *
+     *  With libmix.pipeline-chunk set, recorded requests are sent to MPService in chunks
+     *  of that size while the closure is still recording, and replay waits only for the
+     *  chunk it is reading. Compute latency is then included in the record and replay times.
+     *
+     *  Modpow counts and latencies are reported to ExtractionMetrics under the given site.
+     *  A run nested inside another run on the same thread joins the enclosing scope,
+     *  see join.
+     */
+    public static <T> T run(String site, Supplier<T> f, String v) {
+        MPBridge i = i();
+        if(i.depth > 0) {
+            return join(f, v);
+        }
+        a();
+        startRecord(v);
+        i.depth++;
+        if(pipelineChunk > 0 && i.recording) {
+            i.chunkSize = pipelineChunk;
+            i.chunks = new ArrayList<CompletableFuture<BigInteger[]>>();
+        }
+        try {
+            long now = System.nanoTime();
+            T ret = f.get();
+            long r = System.nanoTime() - now;
+            i.recording = false;
+            int modPows = i.count;
+            i.lastCount = modPows;
+            long c = 0;
+            long p = 0;
+            if(i.count > 0) {
+                long now2 = System.nanoTime();
+                if(i.chunks != null) {
+                    if(i.count > i.submitted) i.submitChunk();
+                }
+                else {
+                    i.compute();
+                }
+                c = System.nanoTime() - now2;
+                startReplay();
+                long now3 = System.nanoTime();
+                ret = f.get();
+                p = System.nanoTime() - now3;
+                stopReplay();
+            }
+            ExtractionMetrics.record(site, modPows, r, c, p);
+            b(3);
+
+            return ret;
+        }
+        finally {
+            i.depth--;
+            i.recording = false;
+            i.replaying = false;
+            reset();
+        }
+    }
+
+    /**
+     *  Extracts modpows from given closure, reported under the default site.
      */
     public static <T> T run(Supplier<T> f, String v) {
+        return run(DEFAULT_SITE, f, v);
+    }
+
+    /**
+     *  Extracts modpows from the given closure like run, without blocking on their computation
+     *
+     *  The closure records on the calling thread and the batch is submitted with
+     *  MPService.computeAsync. Once computed, the closure replays on the given executor,
+     *  not on the modpow service's threads, and the returned future completes with the
+     *  replayed value. Recording is not pipelined.
+     *
+     *  Nested inside another run, or if no modpows are recorded, the closure runs on
+     *  the calling thread and the returned future is already complete.
+     */
+    public static <T> CompletableFuture<T> runAsync(String site, Supplier<T> f, String v, Executor executor) {
+        MPBridge i = i();
+        if(i.depth > 0) {
+            return CompletableFuture.completedFuture(join(f, v));
+        }
         a();
         startRecord(v);
-        long now = System.currentTimeMillis();
-        T ret = f.get();
-        long r = System.currentTimeMillis() - now;
-        logger.trace("Record: [" + r + " ms]");
-        ModPow2[] reqs = stopRecord();
-        b(3);
-        if(reqs.length > 0) {
-            long now2 = System.currentTimeMillis();
-            BigInteger[] answers = MPService.compute(reqs, i().modulus);
-            long c = System.currentTimeMillis() - now2;
-            startReplay(answers);
+        i.depth++;
+        T ret;
+        long r;
+        int modPows;
+        BigInteger[] requestBases;
+        BigInteger[] requestPows;
+        BigInteger[] requestModuli;
+        try {
+            long now = System.nanoTime();
             ret = f.get();
-            long t = System.currentTimeMillis() - now;
-            logger.trace("Compute: [" + c + " ms] R+C: [" + (r+c) + " ms] Total: [" + t + " ms]");
+            r = System.nanoTime() - now;
+            modPows = i.count;
+            requestBases = Arrays.copyOf(i.bases, modPows);
+            requestPows = Arrays.copyOf(i.pows, modPows);
+            requestModuli = Arrays.copyOf(i.moduli, modPows);
+        }
+        finally {
+            i.depth--;
+            i.recording = false;
+            reset();
+        }
+        if(modPows == 0) {
+            ExtractionMetrics.record(site, 0, r, 0, 0);
+            return CompletableFuture.completedFuture(ret);
+        }
+
+        long now2 = System.nanoTime();
+        return computeAsync(requestBases, requestPows, requestModuli, modPows)
+            .thenApplyAsync(answers -> replay(site, f, answers, r, System.nanoTime() - now2), executor);
+    }
+
+    /**
+     *  Asynchronous extraction, reported under the default site.
+     */
+    public static <T> CompletableFuture<T> runAsync(Supplier<T> f, Executor executor) {
+        return runAsync(DEFAULT_SITE, f, "2", executor);
+    }
+
+    /**
+     *  Asynchronous extraction, reported under the given site.
+     */
+    public static <T> CompletableFuture<T> runAsync(String site, Supplier<T> f, Executor executor) {
+        return runAsync(site, f, "2", executor);
+    }
+
+    /**
+     *  Replays a closure recorded by runAsync on the calling thread, with the given results.
+     */
+    private static <T> T replay(String site, Supplier<T> f, BigInteger[] answers, long r, long c) {
+        MPBridge i = i();
+        if(i.depth > 0 || i.count != 0) throw new IllegalStateException();
+        i.ensureCapacity(answers.length);
+        System.arraycopy(answers, 0, i.results, 0, answers.length);
+        i.count = answers.length;
+        i.depth++;
+        try {
+            startReplay();
+            long now = System.nanoTime();
+            T ret = f.get();
+            long p = System.nanoTime() - now;
             stopReplay();
+            ExtractionMetrics.record(site, answers.length, r, c, p);
+
+            return ret;
         }
-        reset();
+        finally {
+            i.depth--;
+            i.replaying = false;
+            reset();
+        }
+    }
 
-        return ret;
+    /**
+     *  A loop body over the index range [from, to).
+     */
+    public interface Range {
+        void apply(int from, int to);
+    }
+
+    /**
+     *  Returns the number of requests per pipelined chunk (libmix.pipeline-chunk), 0 if disabled.
+     */
+    public static int getPipelineChunk() {
+        return pipelineChunk;
+    }
+
+    /**
+     *  Sets the pipelined chunk size, overriding libmix.pipeline-chunk, 0 to disable.
+     *
+     *  Meant for tests and benchmarks, runs in progress are not affected.
+     */
+    public static void setPipelineChunk(int chunk) {
+        pipelineChunk = chunk;
+    }
+
+    /**
+     *  Returns the maximum number of modpows extracted at once by chunked runs
+     *  (libmix.max-inflight), 0 if unbounded.
+     */
+    public static int getMaxInflight() {
+        return maxInflight;
+    }
+
+    /**
+     *  Sets the bound of chunked runs, overriding libmix.max-inflight, 0 for unbounded.
+     *
+     *  Meant for tests and benchmarks, runs in progress are not affected.
+     */
+    public static void setMaxInflight(int max) {
+        maxInflight = max;
+    }
+
+    /**
+     *  Returns the number of loop indices per chunk so that a chunk extracts at most
+     *  libmix.max-inflight modpows, given the modpows per index. Returns size if unbounded.
+     */
+    public static int chunkIndices(int size, int modPowsPerIndex) {
+        if(maxInflight <= 0) return Math.max(size, 1);
+
+        return Math.max(1, maxInflight / Math.max(1, modPowsPerIndex));
+    }
+
+    /**
+     *  Extracts modpows from a loop over [0, size), in chunks of bounded size
+     *
+     *  With libmix.max-inflight set, the loop is split into index ranges that are recorded,
+     *  computed and replayed in sequence, each as its own run, so that at most about that
+     *  many modpows (and their results) are held at once. The first range has one index,
+     *  later ranges are sized from the modpows per index observed so far. The body must
+     *  only write state for the indices of its range.
+     *
+     *  Unbounded, or nested inside another run, this is one run over the whole range.
+     */
+    public static void runChunked(String site, int size, Range f) {
+        MPBridge i = i();
+        if(maxInflight <= 0 || i.depth > 0 || !useExtractor) {
+            run(site, () -> {
+                f.apply(0, size);
+                return null;
+            });
+            return;
+        }
+
+        long modPows = 0;
+        int from = 0;
+        int step = 1;
+        while(from < size) {
+            final int lo = from;
+            final int hi = (int) Math.min((long) from + step, size);
+            run(site, () -> {
+                f.apply(lo, hi);
+                return null;
+            });
+            modPows += i.lastCount;
+            from = hi;
+            long perIndex = (modPows + from - 1) / from;
+            step = chunkIndices(size, (int) Math.min(perIndex, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     *  Executes a nested closure as part of the enclosing run.
+     *
+     *  Its modpows are recorded into, and replayed from, the enclosing batch, so
+     *  the closure runs once per phase of the enclosing run. The dummy value is
+     *  the nested one while the closure records.
+     */
+    private static <T> T join(Supplier<T> f, String v) {
+        MPBridge i = i();
+        BigInteger dummy = i.dummy;
+        if(i.recording) i.dummy = new BigInteger(v);
+        try {
+            return f.get();
+        }
+        finally {
+            i.dummy = dummy;
+        }
+    }
+
+    /**
+     *  A modpow result that is available once the enclosing defer has computed its batch.
+     */
+    public static final class Deferred {
+        private final MPBridge bridge;
+        private final int index;
+        private final BigInteger value;
+
+        private Deferred(MPBridge bridge, int index) {
+            this.bridge = bridge;
+            this.index = index;
+            this.value = null;
+        }
+
+        private Deferred(BigInteger value) {
+            this.bridge = null;
+            this.index = -1;
+            this.value = value;
+        }
+
+        /**
+         *  Returns the result, only valid in the continuation of the enclosing defer.
+         */
+        public BigInteger get() {
+            if(bridge == null) return value;
+            if(bridge.deferring || index >= bridge.count) throw new IllegalStateException();
+
+            return bridge.results[index];
+        }
+    }
+
+    /**
+     *  Returns true if modpow extraction is enabled (libmix.extractor).
+     */
+    public static boolean isExtractor() {
+        return useExtractor;
+    }
+
+    /**
+     *  Enables or disables extraction for subsequent runs, overriding libmix.extractor.
+     *
+     *  Meant for tests and benchmarks that compare both modes in one JVM. Runs in
+     *  progress are not affected.
+     */
+    public static void setExtractor(boolean extractor) {
+        useExtractor = extractor;
+    }
+
+    /**
+     *  Returns true if single pass deferred extraction is enabled (libmix.deferred).
+     */
+    public static boolean isDeferred() {
+        return useDeferred && useExtractor;
+    }
+
+    /**
+     *  Extracts modpows from the given closure in a single pass, executes them via MPService
+     *
+     *  The closure requests modpows with deferModPow and returns a continuation that
+     *  builds the result from the Deferred values. The closure runs once, the batch
+     *  is computed by MPService and then the continuation runs once. Unlike run, work
+     *  that does not depend on modpow results is not repeated.
+     *
+     *  Nested inside run or defer, or with extraction disabled, deferred modpows are
+     *  computed immediately through modPow, and so take part in any enclosing run.
+     */
+    public static <T> T defer(String site, Supplier<Supplier<T>> f) {
+        MPBridge i = i();
+        if(i.depth > 0 || !useExtractor) {
+            boolean deferring = i.deferring;
+            i.deferring = false;
+            try {
+                return f.get().get();
+            }
+            finally {
+                i.deferring = deferring;
+            }
+        }
+        a();
+        i.modulus = null;
+        i.mixed = false;
+        i.depth++;
+        i.deferring = true;
+        try {
+            long now = System.nanoTime();
+            Supplier<T> continuation = f.get();
+            i.deferring = false;
+            long r = System.nanoTime() - now;
+            long c = 0;
+            if(i.count > 0) {
+                long now2 = System.nanoTime();
+                i.compute();
+                c = System.nanoTime() - now2;
+            }
+            long now3 = System.nanoTime();
+            T ret = continuation.get();
+            ExtractionMetrics.record(site, i.count, r, c, System.nanoTime() - now3);
+            b(3);
+
+            return ret;
+        }
+        finally {
+            i.depth--;
+            i.deferring = false;
+            reset();
+        }
+    }
+
+    /**
+     *  Single pass extraction, reported under the default site.
+     */
+    public static <T> T defer(Supplier<Supplier<T>> f) {
+        return defer(DEFAULT_SITE, f);
+    }
+
+    /**
+     *  Requests a modpow whose result is available in the continuation of the enclosing defer.
+     *
+     *  Outside the first pass of a defer the result is computed immediately with modPow.
+     */
+    public static Deferred deferModPow(BigInteger base, BigInteger pow, BigInteger mod) {
+        MPBridge i = i();
+        if(i.deferring) {
+            return new Deferred(i, i.add(base, pow, mod));
+        }
+        else {
+            return new Deferred(modPow(base, pow, mod));
+        }
     }
 
     /**
@@ -180,6 +784,15 @@ public class MPBridge {
         return run(f, "2");
     }
 
+    /**
+     *  Extracts modpow calls from the given closure, reported under the given site.
+     *
+     *  Uses the default dummy value of 2
+     */
+    public static <T> T run(String site, Supplier<T> f) {
+        return run(site, f, "2");
+    }
+
     /**
      *  Method to intercept modpow calls.
      *
@@ -191,7 +804,6 @@ public class MPBridge {
     public static BigInteger modPow(BigInteger base, BigInteger pow, BigInteger mod) {
         MPBridge i = i();
         if(i.recording) {
-            total++;
             addModPow(base, pow, mod);
             return i.dummy;
         }
@@ -206,8 +818,12 @@ public class MPBridge {
             return result.result();
         }
         else {
-            total++;
-            if(useGmp) {
+            ExtractionMetrics.directModPow();
+            FixedBaseTable table = FixedBaseModPowService.table(base, mod, pow);
+            if(table != null) {
+                return table.pow(pow);
+            }
+            else if(useGmp) {
                 return Gmp.modPowInsecure(base, pow, mod);
             }
             else {
@@ -217,8 +833,118 @@ public class MPBridge {
     }
 
     /**
-     *  Returns the modulus common to all modpow requests.
+     *  Precomputes fixed base tables for the given elements.
      *
+     *  Subsequent modpows with these bases, extracted or not, will
+     *  use the tables. Only GStarMod elements are supported, others
+     *  are ignored.
+     */
+    public static void precompute(Element... elements) {
+        for(Element element: elements) {
+            if(element instanceof GStarModElement) {
+                GStarModElement e = (GStarModElement) element;
+                MPService.precompute(e.getValue(), e.getSet().getModulus());
+            }
+        }
+    }
+
+    /**
+     *  Returns true if multi-exponentiations are enabled (libmix.multiexp).
+     */
+    public static boolean isMultiExp() {
+        return useMultiExp;
+    }
+
+    /**
+     *  Enables or disables multi-exponentiations, overriding libmix.multiexp.
+     *
+     *  Meant for tests and benchmarks.
+     */
+    public static void setMultiExp(boolean multiExp) {
+        useMultiExp = multiExp;
+    }
+
+    /**
+     *  Computes Prod(bases_i^exponents_i) as a multi-exponentiation via MPService.
+     *
+     *  Bases must be GStarMod elements of the same group, or tuples of GStarMod
+     *  elements, in which case the product is computed componentwise. Exponents
+     *  must have BigInteger values. Returns null if the bases are not supported
+     *  or libmix.multiexp is not set, callers should then fall back to individual modpows.
+     *
+     *  Multi-exponentiations are not extracted. While a run records, the identity is
+     *  returned as a placeholder, like the dummy value of modPow, and the product is
+     *  only computed in the replay pass.
+     */
+    public static Element multiExp(Tuple bases, Tuple exponents) {
+        if(!useMultiExp || bases.getArity() < 1 || bases.getArity() != exponents.getArity() || !bases.getSet().isUniform()) {
+            return null;
+        }
+        Element first = bases.getAt(0);
+        if(first instanceof GStarModElement) {
+            GStarMod group = ((GStarModElement) first).getSet();
+            BigInteger[] exps = getExponents(exponents, group.getOrder());
+            if(exps == null) return null;
+
+            return multiExp(group, bases, -1, exps);
+        }
+        else if(first instanceof Tuple) {
+            ProductSet set = ((Tuple) first).getSet();
+            GStarMod[] groups = new GStarMod[set.getArity()];
+            for(int k = 0; k < groups.length; k++) {
+                if(!(set.getAt(k) instanceof GStarMod)) return null;
+                groups[k] = (GStarMod) set.getAt(k);
+            }
+            Element[] components = new Element[groups.length];
+            for(int k = 0; k < groups.length; k++) {
+                BigInteger[] exps = getExponents(exponents, groups[k].getOrder());
+                if(exps == null) return null;
+
+                components[k] = multiExp(groups[k], bases, k, exps);
+            }
+
+            return set.getElement(components);
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     *  Computes the multi-exponentiation for bases (or the given component of the bases
+     *  if it is not negative) in the given group.
+     */
+    private static GStarModElement multiExp(GStarMod group, Tuple bases, int component, BigInteger[] exps) {
+        if(i().recording) {
+            return group.getIdentityElement();
+        }
+        BigInteger[] values = new BigInteger[bases.getArity()];
+        for(int i = 0; i < values.length; i++) {
+            Element base = component < 0 ? bases.getAt(i) : ((Tuple) bases.getAt(i)).getAt(component);
+            values[i] = ((GStarModElement) base).getValue();
+        }
+
+        // a product of powers of members is a member
+        return group.getElementUnchecked(MPService.multiExp(values, exps, group.getModulus()));
+    }
+
+    /**
+     *  Returns exponent values reduced modulo the group order, or null if they are not BigIntegers.
+     */
+    private static BigInteger[] getExponents(Tuple exponents, BigInteger order) {
+        BigInteger[] exps = new BigInteger[exponents.getArity()];
+        for(int i = 0; i < exps.length; i++) {
+            Object value = exponents.getAt(i).getValue();
+            if(!(value instanceof BigInteger)) return null;
+            exps[i] = ((BigInteger) value).mod(order);
+        }
+
+        return exps;
+    }
+
+    /**
+     *  Returns the modulus of the first modpow request, common to all of them
+     *  unless the requests use several moduli.
      */
     public static BigInteger getModulus() {
         return i().modulus;
@@ -231,11 +957,10 @@ public class MPBridge {
 
     // tracing vars
     public long before = 0;
-    public static long total = 0;
     private long beforeTime = 0;
 
     public static void startReplayDebug(ModPowResult[] answers_) {
-        if(answers_.length != i().requests.size()) throw new IllegalArgumentException(answers_.length + "!=" + i().requests.size());
+        if(answers_.length != i().count) throw new IllegalArgumentException(answers_.length + "!=" + i().count);
         i().answersDebug = new LinkedList<ModPowResult>(Arrays.asList(answers_));
 
         i().replayingDebug = true;
@@ -289,10 +1014,11 @@ public class MPBridge {
     }
 
     public static void b(int trace) {
+        if(!logger.isTraceEnabled()) return;
         MPBridge i = i();
         StackTraceElement[] traces = Thread.currentThread().getStackTrace();
         StackTraceElement caller = traces[trace];
         long diffTime = System.currentTimeMillis() - i.beforeTime;
-        logger.trace(">>> " + caller.getFileName() + ":" + caller.getLineNumber() + " [" + diffTime + " ms]" + " (" + total + ")");
+        logger.trace(">>> " + caller.getFileName() + ":" + caller.getLineNumber() + " [" + diffTime + " ms]" + " (" + ExtractionMetrics.extractedModPows() + ")");
     }
 }
\ No newline at end of file
@@ -13,10 +13,10 @@ import ch.bfh.unicrypt.math.algebra.dualistic.interfaces.DualisticElement;
 import ch.bfh.unicrypt.math.algebra.general.classes.Pair;
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductGroup;
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple;
+import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup;
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime;
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
 
+import java.lang.reflect.Array;
 import java.math.BigInteger;
 
 /**
@@ -25,9 +25,10 @@ import java.math.BigInteger;
  *  Feldman' scheme is an extension of Shamir's secret sharing where the dealer
  *  calculates commitments that can be verified by the rest of the parties.
  *
- *  Derived from unicrypt's ShamirSecretSharingScheme.
+ *  Derived from unicrypt's ShamirSecretSharingScheme. Works over any prime order group,
+ *  E is the type of its elements (the commitments).
  */
-public class FeldmanSecretSharingScheme {
+public class FeldmanSecretSharingScheme<E extends Element<?>> {
 
     private static final long serialVersionUID = 1L;
 
@@ -35,7 +36,7 @@ public class FeldmanSecretSharingScheme {
     private final PolynomialRing polynomialRing;
     private final int size;
     private final int threshold;
-    private GStarModElement generator;
+    private E generator;
     private final ProductGroup shareSpace;
 
     /**
@@ -43,10 +44,10 @@ public class FeldmanSecretSharingScheme {
      *
      *  The polynomial will be over the ElGamal keyspace field, Zq.
      */
-    public FeldmanSecretSharingScheme(GStarModSafePrime gStarModSafePrime, GStarModElement generator,
+    public FeldmanSecretSharingScheme(CyclicGroup<?> cyclicGroup, E generator,
         int size, int threshold) {
 
-        this.zModPrime = gStarModSafePrime.getZModOrder();
+        this.zModPrime = (ZModPrime) cyclicGroup.getZModOrder();
         this.shareSpace = ProductGroup.getInstance(zModPrime, 2);
         this.polynomialRing = PolynomialRing.getInstance(zModPrime);
         this.size = size;
@@ -85,14 +86,14 @@ public class FeldmanSecretSharingScheme {
     /**
      *  Compute shares (and commitments), uses the default random source
      */
-    public final SharesAndCommitments share(ZModElement message) {
+    public final SharesAndCommitments<E> share(ZModElement message) {
         return share(message, HybridRandomByteSequence.getInstance());
     }
 
     /**
      *  Compute shares (and commitments), passing in a random source.
      */
-    public final SharesAndCommitments share(ZModElement message, RandomByteSequence randomByteSequence) {
+    public final SharesAndCommitments<E> share(ZModElement message, RandomByteSequence randomByteSequence) {
         if (message == null || !this.getMessageSpace().contains(message) || randomByteSequence == null) {
             throw new IllegalArgumentException();
         }
@@ -154,7 +155,8 @@ public class FeldmanSecretSharingScheme {
      *  The commitments are c(0)....c(threshold), where c(n) = g^coefficient(n).
      *  coefficient(n) is the nth coefficient of the polynomial, c(0) is the secret.
      */
-    private SharesAndCommitments share_(ZModElement message, RandomByteSequence randomByteSequence) {
+    @SuppressWarnings("unchecked")
+    private SharesAndCommitments<E> share_(ZModElement message, RandomByteSequence randomByteSequence) {
         // create an array of coefficients with size threshold
         // the coefficient of degree 0 is fixed (message)
         // all other coefficients are random
@@ -178,21 +180,21 @@ public class FeldmanSecretSharingScheme {
         }
 
         // commitments
-        GStarModElement[] commitments = new GStarModElement[threshold];
+        E[] commitments = (E[]) Array.newInstance(generator.getClass(), threshold);
         for (int i = 0; i < threshold; i++) {
-            commitments[i] = generator.selfApply(coefficients[i]);
+            commitments[i] = (E) generator.selfApply(coefficients[i]);
         }
 
         // verify shares
         // https://wikimedia.org/api/rest_v1/media/math/render/svg/1d2a6fb3eb256ad402648f93e6b06646bf6c8195
         for (int i = 0; i < size; i++) {
-            GStarModElement lhs = generator.selfApply(ys[i]);
+            Element<?> lhs = generator.selfApply(ys[i]);
 
-            GStarModElement rhs = null;
+            Element<?> rhs = null;
             for (int j = 0; j < threshold; j++) {
                 // share at index 0 is share for party 1, and so forth
                 Double exponent = Math.pow(i + 1, j);
-                GStarModElement tmp = commitments[j].selfApply(exponent.intValue());
+                Element<?> tmp = commitments[j].selfApply(exponent.intValue());
                 if(rhs == null) {
                     rhs = tmp;
                 }
@@ -203,7 +205,7 @@ public class FeldmanSecretSharingScheme {
             assert(lhs == rhs);
         }
 
-        return new SharesAndCommitments(xs, ys, commitments);
+        return new SharesAndCommitments<E>(xs, ys, commitments);
     }
 
     /**
@@ -230,15 +232,18 @@ public class FeldmanSecretSharingScheme {
     /**
      *  Factory method
      */
-    public static FeldmanSecretSharingScheme getInstance(GStarModSafePrime gStarModSafePrime, GStarModElement generator,
-        int size, int threshold) {
+    public static <E extends Element<?>> FeldmanSecretSharingScheme<E> getInstance(CyclicGroup<?> cyclicGroup,
+        E generator, int size, int threshold) {
 
-        ZModPrime zModPrime = gStarModSafePrime.getZModOrder();
+        if (cyclicGroup == null || !(cyclicGroup.getZModOrder() instanceof ZModPrime)) {
+            throw new IllegalArgumentException();
+        }
+        ZModPrime zModPrime = (ZModPrime) cyclicGroup.getZModOrder();
 
-        if (zModPrime == null || size < 1 || threshold < 1 || threshold > size
+        if (size < 1 || threshold < 1 || threshold > size
                || BigInteger.valueOf(size).compareTo(zModPrime.getOrder()) >= 0) {
             throw new IllegalArgumentException();
         }
-        return new FeldmanSecretSharingScheme(gStarModSafePrime, generator, size, threshold);
+        return new FeldmanSecretSharingScheme<E>(cyclicGroup, generator, size, threshold);
     }
 }
\ No newline at end of file
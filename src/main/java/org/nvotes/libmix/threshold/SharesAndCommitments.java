@@ -2,14 +2,14 @@ package org.nvotes.libmix.threshold;
 
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple;
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement;
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement;
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element;
 
-public class SharesAndCommitments {
+public class SharesAndCommitments<E extends Element<?>> {
     public ZModElement[] xs;
     public ZModElement[] ys;
-    public GStarModElement[] commitments;
+    public E[] commitments;
 
-    public SharesAndCommitments(ZModElement[] xs, ZModElement[] ys, GStarModElement[] commitments) {
+    public SharesAndCommitments(ZModElement[] xs, ZModElement[] ys, E[] commitments) {
         this.xs = xs;
         this.ys = ys;
         this.commitments = commitments;
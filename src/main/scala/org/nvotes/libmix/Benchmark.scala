@@ -1,11 +1,8 @@
 package org.nvotes.libmix.benchmark
 
-import ch.bfh.unicrypt.crypto.schemes.encryption.classes.ElGamalEncryptionScheme
-import ch.bfh.unicrypt.crypto.encoder.classes.ZModPrimeToGStarModSafePrime
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement
-import ch.bfh.unicrypt.math.algebra.general.classes.Pair
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
 import org.nvotes.libmix._
 
 /** Simulates a two authority election for benchmarking purposes
@@ -28,9 +25,16 @@ object Benchmark extends App {
 
   val proverId1 = "auth1"
   val proverId2 = "auth2"
-  val group = GStarModSafePrime.getFirstInstance(2048)
-  val generator = group.getDefaultGenerator()
-  val cSettings = CryptoSettings(group, generator)
+  val cSettings: GroupSettings = if(Util.getEnvBoolean("libmix.ec")) {
+    ECCryptoSettings()
+  }
+  else if(Util.getEnvBoolean("libmix.schnorr")) {
+    SchnorrCryptoSettings(2048, 256)
+  }
+  else {
+    val group = GStarModSafePrime.getFirstInstance(2048)
+    CryptoSettings(group, group.getDefaultGenerator())
+  }
 
   // create shares
   val (share1, private1) = KeyMakerTrustee.createKeyShare(proverId1, cSettings)
@@ -61,14 +65,23 @@ object Benchmark extends App {
   // if a second argument is passed we do the offline phase separately and simulate parallelism
   var mixOne: ShuffleResultDTO = null
   var mixTwo: ShuffleResultDTO = null
+  // the cast votes are checked once, the shuffled votes are passed on between stages without checks
+  var votes0: ValidatedCiphertexts = null
+  var votes1: ValidatedCiphertexts = null
+  var votes2: ValidatedCiphertexts = null
   var start = 0L
   if(args.length == 1) {
     println("Timing serial offline + online")
 
     start = System.currentTimeMillis
+    votes0 = ValidatedCiphertexts.fromStrings(votes, cSettings)
     // shuffle
-    mixOne = MixerTrustee.shuffleVotes(votes, publicKeyString, proverId1, cSettings)
-    mixTwo = MixerTrustee.shuffleVotes(mixOne.votes, publicKeyString, proverId2, cSettings)
+    val (result1, shuffled1) = MixerTrustee.shuffleVotes(votes0, publicKeyString, proverId1, cSettings)
+    val (result2, shuffled2) = MixerTrustee.shuffleVotes(shuffled1, publicKeyString, proverId2, cSettings)
+    mixOne = result1
+    mixTwo = result2
+    votes1 = shuffled1
+    votes2 = shuffled2
   }
   else {
     println("Timing parallel-offline + online")
@@ -81,37 +94,37 @@ object Benchmark extends App {
     val (pdto2, pData2) = MixerTrustee.preShuffleVotes(votes, publicKeyString, proverId2, cSettings)
 
     // online phase
-    mixOne = MixerTrustee.shuffleVotes(votes, pData1, pdto1, publicKeyString, proverId1, cSettings)
-    mixTwo = MixerTrustee.shuffleVotes(mixOne.votes, pData2, pdto2, publicKeyString, proverId2, cSettings)
+    votes0 = ValidatedCiphertexts.fromStrings(votes, cSettings)
+    val (result1, shuffled1) = MixerTrustee.shuffleVotes(votes0, pData1, pdto1, publicKeyString, proverId1, cSettings)
+    val (result2, shuffled2) = MixerTrustee.shuffleVotes(shuffled1, pData2, pdto2, publicKeyString, proverId2, cSettings)
+    mixOne = result1
+    mixTwo = result2
+    votes1 = shuffled1
+    votes2 = shuffled2
   }
 
   // verify shuffle
-  val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-  val votes0 = votes.map(Util.fromString(elGamal.getEncryptionSpace, _))
-  val votes1 = mixOne.votes.map(Util.fromString(elGamal.getEncryptionSpace, _))
-  val votes2 = mixTwo.votes.map(Util.fromString(elGamal.getEncryptionSpace, _).asInstanceOf[Pair])
-
-  val oks1 = Verifier.verifyShuffle(Util.tupleFromSeq(votes0), Util.tupleFromSeq(votes1), mixOne.shuffleProof,
+  val oks1 = Verifier.verifyShuffle(votes0.tuple, votes1.tuple, mixOne.shuffleProof,
     proverId1, publicKey, cSettings)
-  val oks2 = Verifier.verifyShuffle(Util.tupleFromSeq(votes1), Util.tupleFromSeq(votes2), mixTwo.shuffleProof,
+  val oks2 = Verifier.verifyShuffle(votes1.tuple, votes2.tuple, mixTwo.shuffleProof,
     proverId2, publicKey, cSettings)
   if(!(oks1 && oks2)) {
     throw new Exception(s"failed to verify shuffles $oks1 $oks2")
   }
 
-  val decryption1 = KeyMakerTrustee.partialDecryption(proverId1, mixTwo.votes, private1, cSettings)
-  val decryption2 = KeyMakerTrustee.partialDecryption(proverId2, mixTwo.votes, private2, cSettings)
+  val decryption1 = KeyMakerTrustee.partialDecryption(proverId1, votes2, private1, cSettings)
+  val decryption2 = KeyMakerTrustee.partialDecryption(proverId2, votes2, private2, cSettings)
   val decryptions = List(decryption1, decryption2)
 
   // verify decryptions
-  val okd1 = Verifier.verifyPartialDecryption(decryption1, votes2, cSettings, proverId1, shares(0))
-  val okd2 = Verifier.verifyPartialDecryption(decryption2, votes2, cSettings, proverId2, shares(1))
+  val okd1 = Verifier.verifyPartialDecryption(decryption1, votes2.ciphertexts, cSettings, proverId1, shares(0))
+  val okd2 = Verifier.verifyPartialDecryption(decryption2, votes2.ciphertexts, cSettings, proverId2, shares(1))
   if(!(okd1 && okd2)) {
     throw new Exception(s"failed to verify decryptions $okd1 $okd2")
   }
 
   // combine decryptions
-  val decrypted = combineDecryptions(decryptions, mixTwo.votes, cSettings)
+  val decrypted = combineDecryptions(decryptions, votes2, cSettings)
 
   val end = System.currentTimeMillis
 
@@ -126,22 +139,26 @@ object Benchmark extends App {
    *  finally decodes.
    */
   def combineDecryptions(decryptions: Seq[PartialDecryptionDTO], mixedVotes: Seq[String],
-    cSettings: CryptoSettings) = {
+    cSettings: GroupSettings): Seq[String] = {
+
+    combineDecryptions(decryptions, ValidatedCiphertexts.fromStrings(mixedVotes, cSettings), cSettings)
+  }
+
+  /** Helper to combine decryptions and yield plaintexts, for already validated ciphertexts */
+  def combineDecryptions(decryptions: Seq[PartialDecryptionDTO], mixedVotes: ValidatedCiphertexts,
+    cSettings: GroupSettings): Seq[String] = {
 
-    val decryptionElements = decryptions.map(
-      ds => ds.partialDecryptions.par.map(Util.fromString(cSettings.group, _)).seq
-    )
+    mixedVotes.requireGroup(cSettings)
+    val decryptionElements = decryptions.map(ds => Util.elementsFromStrings(ds.partialDecryptions, cSettings))
 
     val combined = decryptionElements.reduce { (a, b) =>
       (a zip b).par.map(c => c._1.apply(c._2)).seq
     }
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-
-    val votes = mixedVotes.par.map( v => Util.fromString(elGamal.getEncryptionSpace, v).asInstanceOf[Pair] ).seq
+    val votes = mixedVotes.ciphertexts
     // a^-x * b = m
     val decrypted = (votes zip combined).par.map(c => c._1.getSecond().apply(c._2)).seq
-    val encoder = ZModPrimeToGStarModSafePrime.getInstance(cSettings.group)
+    val encoder = Util.getEncoder(cSettings)
 
     val plaintexts = decrypted.par.map(encoder.decode(_).convertToString).seq
     plaintexts
@@ -160,7 +177,7 @@ object KeyMakerTrustee extends KeyMaker {
    *  Returns the key share and proof of knowledge as an nMix EncryptionKeyShareDTO.
    *  Returns the private key part of the share as a unicrypted converted String
    */
-  def createKeyShare(id: String, cSettings: CryptoSettings): (EncryptionKeyShareDTO, String) = {
+  def createKeyShare(id: String, cSettings: GroupSettings): (EncryptionKeyShareDTO, String) = {
 
     val (encryptionKeyShareDTO, privateKey) = createShare(id, cSettings)
 
@@ -172,13 +189,19 @@ object KeyMakerTrustee extends KeyMaker {
    *  Returns the partial decryption and proof of knowledge as an nMix EncryptionKeyShareDTO.
    */
   def partialDecryption(id: String, votes: Seq[String],
-    privateShare: String, cSettings: CryptoSettings): PartialDecryptionDTO = {
+    privateShare: String, cSettings: GroupSettings): PartialDecryptionDTO = {
+
+    partialDecryption(id, ValidatedCiphertexts.fromStrings(votes, cSettings), privateShare, cSettings)
+  }
+
+  /** Partially decrypt already validated ciphertexts with the private part of a share */
+  def partialDecryption(id: String, votes: ValidatedCiphertexts,
+    privateShare: String, cSettings: GroupSettings): PartialDecryptionDTO = {
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-    val v = votes.par.map( v => Util.fromString(elGamal.getEncryptionSpace, v).asInstanceOf[Pair]).seq
+    votes.requireGroup(cSettings)
     val secretKey = cSettings.group.getZModOrder().getElementFrom(privateShare)
 
-    partialDecrypt(v, secretKey, id, cSettings)
+    partialDecrypt(votes.ciphertexts, secretKey, id, cSettings)
   }
 }
 
@@ -193,29 +216,43 @@ object MixerTrustee extends Mixer {
    *
    *  Returns the shuffle and proof of knowledge as a ShuffleResultDTO
    */
-  def shuffleVotes(votes: Seq[String], publicKey: String, id: String, cSettings: CryptoSettings): ShuffleResultDTO = {
+  def shuffleVotes(votes: Seq[String], publicKey: String, id: String, cSettings: GroupSettings): ShuffleResultDTO = {
     println("Mixer shuffle..")
 
-    val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-    val pk = cSettings.group.getElementFrom(publicKey)
+    val pk = Util.getPublicKeyFromString(publicKey, cSettings.generator)
 
     println("Convert votes..")
 
-    val vs = votes.par.map( v => Util.fromString(elGamal.getEncryptionSpace, v) ).seq
+    val vs = Util.ciphertextsFromStrings(votes, cSettings)
 
     println("Mixer creating shuffle..")
 
     shuffle(Util.tupleFromSeq(vs), pk, cSettings, id)
   }
 
+  /** Shuffle already validated votes
+   *
+   *  Returns the shuffle and proof of knowledge as a ShuffleResultDTO, and the shuffled votes
+   */
+  def shuffleVotes(votes: ValidatedCiphertexts, publicKey: String, id: String, cSettings: GroupSettings)
+    : (ShuffleResultDTO, ValidatedCiphertexts) = {
+    println("Mixer shuffle..")
+
+    val pk = Util.getPublicKeyFromString(publicKey, cSettings.generator)
+
+    println("Mixer creating shuffle..")
+
+    shuffle(votes, pk, cSettings, id)
+  }
+
   /** Performs the offline phase of the shuffle
    *
    *  Returns the permutation data and the permutation proof
    */
-  def preShuffleVotes(votes: Seq[String], publicKey: String, id: String, cSettings: CryptoSettings) = {
+  def preShuffleVotes(votes: Seq[String], publicKey: String, id: String, cSettings: GroupSettings) = {
     println("Mixer preShuffle..")
 
-    val pk = cSettings.group.getElementFrom(publicKey)
+    val pk = Util.getPublicKeyFromString(publicKey, cSettings.generator)
 
     preShuffle(votes.size, pk, cSettings, id)
   }
@@ -226,16 +263,30 @@ object MixerTrustee extends Mixer {
    *  Returns the shuffle and proof of knowledgeas an libmix ShuffleResultDTO
    */
   def shuffleVotes(votesString: Seq[String], pData: PermutationData, pdto: PermutationProofDTO,
-    publicKey: String, id: String, cSettings: CryptoSettings) = {
+    publicKey: String, id: String, cSettings: GroupSettings) = {
     println("Mixer online phase..")
-    val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-    val pk = cSettings.group.getElementFrom(publicKey)
+    val pk = Util.getPublicKeyFromString(publicKey, cSettings.generator)
     println("Convert votes..")
 
-    val votes = votesString.par.map( v => Util.fromString(elGamal.getEncryptionSpace, v) ).seq
+    val votes = Util.ciphertextsFromStrings(votesString, cSettings)
 
     println("Mixer creating shuffle..")
 
     shuffle(Util.tupleFromSeq(votes), pData, pdto, pk, cSettings, id)
   }
+
+  /** Performs the online phase of the shuffle for already validated votes
+   *
+   *  Requires data from the online phase
+   *  Returns the shuffle and proof of knowledge as a ShuffleResultDTO, and the shuffled votes
+   */
+  def shuffleVotes(votes: ValidatedCiphertexts, pData: PermutationData, pdto: PermutationProofDTO,
+    publicKey: String, id: String, cSettings: GroupSettings): (ShuffleResultDTO, ValidatedCiphertexts) = {
+    println("Mixer online phase..")
+    val pk = Util.getPublicKeyFromString(publicKey, cSettings.generator)
+
+    println("Mixer creating shuffle..")
+
+    shuffle(votes, pData, pdto, pk, cSettings, id)
+  }
 }
@@ -1,15 +1,67 @@
 package org.nvotes.libmix
 
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModElement
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModPrime
+import ch.bfh.unicrypt.math.algebra.additive.parameters.ECZModPrimeParameters
+import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModPrime
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement
+import ch.bfh.unicrypt.math.algebra.general.classes.Pair
 import ch.bfh.unicrypt.math.algebra.general.classes.PermutationElement
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
 
+import scala.collection.JavaConverters._
+
+import org.nvotes.libmix.ec.JacobianECZModPrime
+
 /**
  * The group and generator for an election
+ *
+ * Any prime order cyclic group can be used: safe prime groups with CryptoSettings,
+ * Schnorr groups with SchnorrCryptoSettings, elliptic curves with ECCryptoSettings.
+ */
+sealed trait GroupSettings {
+  def group: CyclicGroup[_]
+  def generator: Element[_]
+}
+
+/**
+ * The group and generator for an election, over a safe prime group
+ */
+case class CryptoSettings(group: GStarModSafePrime, generator: GStarModElement) extends GroupSettings
+
+/**
+ * The group and generator for an election, over a Schnorr group
+ *
+ * The order q is a small prime factor of p - 1, so exponents are q bits long instead of
+ * about as long as p in a safe prime group of the same modulus size.
  */
-case class CryptoSettings(group: GStarModSafePrime, generator: GStarModElement)
+case class SchnorrCryptoSettings(group: GStarModPrime, generator: GStarModElement) extends GroupSettings
+
+object SchnorrCryptoSettings {
+
+  /** Returns the settings for the first Schnorr group with the given bit lengths, with its default generator */
+  def apply(modulusBits: Int = 2048, orderBits: Int = 256): SchnorrCryptoSettings = {
+    val group = GStarModPrime.getFirstInstance(modulusBits, orderBits)
+    SchnorrCryptoSettings(group, group.getDefaultGenerator())
+  }
+}
+
+/**
+ * The group and generator for an election, over a prime order elliptic curve
+ */
+case class ECCryptoSettings(group: ECZModPrime, generator: ECZModElement) extends GroupSettings
+
+object ECCryptoSettings {
+
+  /** Returns the settings for the given standard curve, SECP256r1 by default, with its default generator */
+  def apply(params: ECZModPrimeParameters = ECZModPrimeParameters.SECP256r1): ECCryptoSettings = {
+    val group = JacobianECZModPrime.getInstance(params)
+    ECCryptoSettings(group, group.getDefaultGenerator.asInstanceOf[ECZModElement])
+  }
+}
 
 /**
  *  Private permutation data
@@ -18,12 +70,63 @@ case class CryptoSettings(group: GStarModSafePrime, generator: GStarModElement)
  */
 case class PermutationData(permutation: PermutationElement, randomizations: Tuple)
 
+/**
+ *  Ciphertexts known to be members of the encryption space
+ *
+ *  Obtained either at a trust boundary, checking deserialized ciphertexts once with fromStrings,
+ *  or from libmix group operations on valid inputs (shuffle outputs). Passing these between the
+ *  stages of one process avoids repeating the membership check each time votes are converted.
+ *
+ *  Membership only holds for the group they were validated in, stages taking settings check
+ *  them with requireGroup.
+ */
+final class ValidatedCiphertexts private[libmix] (val ciphertexts: Seq[Pair], val group: CyclicGroup[_]) {
+
+  /** Throws IllegalArgumentException if the ciphertexts were not validated in the group of the settings */
+  def requireGroup(cSettings: GroupSettings): Unit = {
+    if(!group.isEquivalent(cSettings.group)) {
+      throw new IllegalArgumentException(s"Ciphertexts were validated in $group, not ${cSettings.group}")
+    }
+  }
+
+  def size: Int = ciphertexts.size
+
+  def tuple: Tuple = Util.tupleFromSeq(ciphertexts)
+
+  def strings: Seq[String] = ciphertexts.par.map(_.convertToString).seq
+
+  /** The ciphertexts in the compact encoding of safe prime groups, see Util.ciphertextsToCompact */
+  def compact(cSettings: CryptoSettings): Seq[String] = {
+    requireGroup(cSettings)
+    Util.ciphertextsToCompact(ciphertexts, cSettings)
+  }
+}
+
+object ValidatedCiphertexts {
+
+  /** Parses and checks the membership of untrusted ciphertexts, see Util.ciphertextsFromStrings */
+  def fromStrings(votes: Seq[String], cSettings: GroupSettings): ValidatedCiphertexts = {
+    new ValidatedCiphertexts(Util.ciphertextsFromStrings(votes, cSettings), cSettings.group)
+  }
+
+  /** Decodes ciphertexts in the compact encoding, which only decodes to members, see Util.ciphertextsFromCompact */
+  def fromCompact(votes: Seq[String], cSettings: CryptoSettings): ValidatedCiphertexts = {
+    new ValidatedCiphertexts(Util.ciphertextsFromCompact(votes, cSettings), cSettings.group)
+  }
+
+  /** Wraps ciphertexts computed by libmix from valid inputs in the given settings' group, without checking */
+  private[libmix] def trusted(ciphertexts: Tuple, cSettings: GroupSettings): ValidatedCiphertexts = {
+    new ValidatedCiphertexts(ciphertexts.asScala.map(_.asInstanceOf[Pair]).toList, cSettings.group)
+  }
+}
+
 /**
  * Serialization (Data Transfer Object) classes
  *
  * Allows persisting and transporting data over the network. In the current implementation
  * serializations take the form of strings, using unicrypts built-in conversions.
- * Another more efficient possibility is binary data.
+ * Ciphertexts of safe prime groups can also use the more compact binary encoding of
+ * ValidatedCiphertexts.compact.
  */
 
 /** Generic sigma proof, used for both key shares and partial decryption proofs */
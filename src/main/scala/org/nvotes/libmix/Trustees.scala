@@ -1,9 +1,11 @@
 package org.nvotes.libmix
 
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
+
+import org.nvotes.libmix.mpservice.MPBridge
+
 import scala.collection.JavaConverters._
-import scala.concurrent._
-import scala.concurrent.duration._
-import scala.concurrent.ExecutionContext.Implicits.global
 
 import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.FiatShamirSigmaChallengeGenerator
@@ -24,7 +26,6 @@ import ch.bfh.unicrypt.math.algebra.general.classes.PermutationElement
 import ch.bfh.unicrypt.math.algebra.general.classes.Triple
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
 import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement
 import ch.bfh.unicrypt.math.algebra.dualistic.classes.ZModElement
 import ch.bfh.unicrypt.math.function.classes.CompositeFunction
 import ch.bfh.unicrypt.math.function.classes.GeneratorFunction
@@ -52,7 +53,7 @@ trait KeyMaker extends ProofSettings {
    * The public encryption data is serialized, returning an (EncryptionKeyShareDTO, Element) tuple.
    * The second element of the tuple is the private share, a unicrypt Element.
    */
-  def createShare(proverId: String, cSettings: CryptoSettings): (EncryptionKeyShareDTO, ZModElement) = {
+  def createShare(proverId: String, cSettings: GroupSettings): (EncryptionKeyShareDTO, ZModElement) = {
 
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
 
@@ -85,7 +86,7 @@ trait KeyMaker extends ProofSettings {
    * in which case we are not inverting the secret key (share).
    */
   def partialDecrypt(votes: Seq[Tuple], privateKey: ZModElement, proverId: String,
-    cSettings: CryptoSettings, verificationKey: Option[GStarModElement] = None): PartialDecryptionDTO = {
+    cSettings: GroupSettings, verificationKey: Option[Element[_]] = None): PartialDecryptionDTO = {
 
     val encryptionGenerator = cSettings.generator
 
@@ -109,11 +110,11 @@ trait KeyMaker extends ProofSettings {
       }
 
       val generator = GeneratorFunction.getInstance(g1)
-      val partialDecryption = generator.apply(decryptionKey).asInstanceOf[GStarModElement]
+      val partialDecryption = generator.apply(decryptionKey)
       val partialDecryptionStr = partialDecryption.convertToString
 
-      (partialDecryption, generator, partialDecryptionStr)
-    }.seq.unzip3
+      (partialDecryption: Element[_], generator, partialDecryptionStr)
+    }.seq.unzip3[Element[_], GeneratorFunction, String]
 
     val proofDTO = createProof(proverId, secretKey, publicKey, lists._1, lists._2,
       cSettings, verificationKey.isEmpty)
@@ -126,9 +127,9 @@ trait KeyMaker extends ProofSettings {
    *
    * The data is serialized and returned as a SigmaProofDTO
    */
-  private def createProof(proverId: String, secretKey: ZModElement, publicKey: GStarModElement,
-    partialDecryptions: Seq[GStarModElement], generatorFunctions: Seq[Function],
-    cSettings: CryptoSettings, invert: Boolean = true)
+  private def createProof(proverId: String, secretKey: ZModElement, publicKey: Element[_],
+    partialDecryptions: Seq[Element[_]], generatorFunctions: Seq[Function],
+    cSettings: GroupSettings, invert: Boolean = true)
     : SigmaProofDTO = {
 
     val encryptionGenerator = cSettings.generator
@@ -181,7 +182,7 @@ trait Mixer extends ProofSettings {
    * The public permutation data is serialized, returning as a (PermutationProofDTO, PermutationData) tuple.
    * The second element of the tuple is the private permutation data, which is not serialized.
    */
-  def preShuffle(voteCount: Int, publicKey: GStarModElement, cSettings: CryptoSettings, proverId: String)
+  def preShuffle(voteCount: Int, publicKey: Element[_], cSettings: GroupSettings, proverId: String)
     : (PermutationProofDTO, PermutationData) = {
 
     logger.debug("Mixer: shuffle (offline)..")
@@ -235,7 +236,7 @@ trait Mixer extends ProofSettings {
    *
    * Unlike the core method above, this method returns all data serialized
    */
-  def preShuffleAlt(voteCount: Int, publicKey: GStarModElement, cSettings: CryptoSettings, proverId: String)
+  def preShuffleAlt(voteCount: Int, publicKey: Element[_], cSettings: GroupSettings, proverId: String)
     : PermutationDTO = {
 
     val (permutationProofDTO, pData) = preShuffle(voteCount, publicKey, cSettings, proverId)
@@ -249,7 +250,27 @@ trait Mixer extends ProofSettings {
    * The data is serialized and returned as a ShuffleResultDTO
    */
   def shuffle(ciphertexts: Tuple, pData: PermutationData, pdto: PermutationProofDTO,
-    publicKey: GStarModElement, cSettings: CryptoSettings, proverId: String): ShuffleResultDTO = {
+    publicKey: Element[_], cSettings: GroupSettings, proverId: String): ShuffleResultDTO = {
+
+    shuffleOnline(ciphertexts, pData, pdto, publicKey, cSettings, proverId)._1
+  }
+
+  /**
+   * Performs the online phase of the shuffle given offline permutation data
+   *
+   * Also returns the shuffled ciphertexts, which need not be checked again by later stages
+   */
+  def shuffle(ciphertexts: ValidatedCiphertexts, pData: PermutationData, pdto: PermutationProofDTO,
+    publicKey: Element[_], cSettings: GroupSettings, proverId: String): (ShuffleResultDTO, ValidatedCiphertexts) = {
+
+    ciphertexts.requireGroup(cSettings)
+    val (result, shuffledVs) = shuffleOnline(ciphertexts.tuple, pData, pdto, publicKey, cSettings, proverId)
+    (result, ValidatedCiphertexts.trusted(shuffledVs, cSettings))
+  }
+
+  /** Online phase of the shuffle, returns the serialized result and the shuffled ciphertexts */
+  private def shuffleOnline(ciphertexts: Tuple, pData: PermutationData, pdto: PermutationProofDTO,
+    publicKey: Element[_], cSettings: GroupSettings, proverId: String): (ShuffleResultDTO, Tuple) = {
 
     logger.debug("Mixer: shuffle (online)..")
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
@@ -300,7 +321,7 @@ trait Mixer extends ProofSettings {
 
     val votesString: Seq[String] = Util.stringsFromTuple(shuffledVs)
 
-    ShuffleResultDTO(shuffleProofDTO, votesString)
+    (ShuffleResultDTO(shuffleProofDTO, votesString), shuffledVs)
   }
 
   /**
@@ -313,7 +334,7 @@ trait Mixer extends ProofSettings {
    * The data is serialized and returned as a ShuffleResultDTO
    */
   def shuffle(ciphertexts: Tuple, pdto: PermutationDTO,
-    publicKey: GStarModElement, cSettings: CryptoSettings, proverId: String): ShuffleResultDTO = {
+    publicKey: Element[_], cSettings: GroupSettings, proverId: String): ShuffleResultDTO = {
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
     val mixer: ReEncryptionMixer = ReEncryptionMixer.getInstance(elGamal, publicKey, ciphertexts.getArity)
     val psi: PermutationElement = mixer.getPermutationGroup().getElementFrom(pdto.permutation)
@@ -331,9 +352,58 @@ trait Mixer extends ProofSettings {
    *
    * The data is serialized and returned as a ShuffleResultDTO
    */
-  def shuffle(ciphertexts: Tuple, publicKey: GStarModElement, Csettings: CryptoSettings, proverId: String)
+  def shuffle(ciphertexts: Tuple, publicKey: Element[_], Csettings: GroupSettings, proverId: String)
     : ShuffleResultDTO  = {
 
+    Util.join(shuffleAsync(ciphertexts, publicKey, Csettings, proverId, Util.proofExecutor))
+  }
+
+  /**
+   * Performs the offline and online phase of the shuffle without blocking the calling thread
+   *
+   * The proof stages run on the given executor, see shuffleFull
+   */
+  def shuffleAsync(ciphertexts: Tuple, publicKey: Element[_], Csettings: GroupSettings, proverId: String,
+    executor: Executor): CompletableFuture[ShuffleResultDTO] = {
+
+    shuffleFull(ciphertexts, publicKey, Csettings, proverId, executor).thenApply[ShuffleResultDTO](_._1)
+  }
+
+  /**
+   * Performs the offline and online phase of the shuffle
+   *
+   * Also returns the shuffled ciphertexts, which need not be checked again by later stages
+   */
+  def shuffle(ciphertexts: ValidatedCiphertexts, publicKey: Element[_], Csettings: GroupSettings, proverId: String)
+    : (ShuffleResultDTO, ValidatedCiphertexts) = {
+
+    Util.join(shuffleAsync(ciphertexts, publicKey, Csettings, proverId, Util.proofExecutor))
+  }
+
+  /**
+   * Performs the offline and online phase of the shuffle without blocking the calling thread
+   *
+   * The proof stages run on the given executor, see shuffleFull
+   */
+  def shuffleAsync(ciphertexts: ValidatedCiphertexts, publicKey: Element[_], Csettings: GroupSettings,
+    proverId: String, executor: Executor): CompletableFuture[(ShuffleResultDTO, ValidatedCiphertexts)] = {
+
+    ciphertexts.requireGroup(Csettings)
+    shuffleFull(ciphertexts.tuple, publicKey, Csettings, proverId, executor)
+      .thenApply[(ShuffleResultDTO, ValidatedCiphertexts)] { case (result, shuffledVs) =>
+        (result, ValidatedCiphertexts.trusted(shuffledVs, Csettings))
+      }
+  }
+
+  /** Offline and online phase of the shuffle, returns the serialized result and the shuffled ciphertexts
+   *
+   *  The permutation proof and the shuffle with its proof are independent stages on the executor. The
+   *  shuffle's modpows are computed with MPBridge.runAsync, which holds no thread while they are computed,
+   *  unless libmix.max-inflight bounds the shuffle in chunks.
+   */
+  private def shuffleFull(ciphertexts: Tuple, publicKey: Element[_], Csettings: GroupSettings, proverId: String,
+    executor: Executor): CompletableFuture[(ShuffleResultDTO, Tuple)] = {
+
     logger.debug("Mixer: shuffle (offline + online)..")
 
     val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
@@ -363,9 +433,10 @@ trait Mixer extends ProofSettings {
 
     logger.trace("Mixer: permutation proof, generating..")
 
-    val permutationProofFuture = Future {
-      pcps.generate(privateInputPermutation, publicInputPermutation)
-    }.map { permutationProof =>
+    // the permutation proof does not depend on the online phase, compose it with the shuffle proof below
+    val permutationProofFuture = CompletableFuture.supplyAsync[Tuple](() =>
+      pcps.generate(privateInputPermutation, publicInputPermutation), executor
+    ).thenApply[PermutationProofDTO] { permutationProof =>
 
       val bridgingCommitments = pcps.getBridingCommitment(permutationProof).asInstanceOf[Tuple].asScala.toList
       val eValues = pcps.getEValues(permutationProof).asInstanceOf[Tuple]
@@ -384,36 +455,49 @@ trait Mixer extends ProofSettings {
 
     logger.trace("Mixer: shuffle..")
 
-    val shuffledVs: Tuple = mixer.shuffle(ciphertexts, psi, rs)
-
-    logger.trace("Mixer: shuffle proof..")
+    val shuffleFuture = if(MPBridge.getMaxInflight > 0) {
+      CompletableFuture.supplyAsync[Tuple](() => mixer.shuffle(ciphertexts, psi, rs), executor)
+    }
+    else {
+      // recorded on the executor, replayed there once the modpows are computed
+      CompletableFuture.supplyAsync[CompletableFuture[Tuple]](() =>
+        MPBridge.runAsync[Tuple]("Mixer.shuffle", () => mixer.shuffle(ciphertexts, psi, rs), executor), executor
+      ).thenCompose[Tuple](shuffled => shuffled)
+    }
 
-    val spg: ReEncryptionShuffleProofSystem = ReEncryptionShuffleProofSystem.getInstance(challengeGenerator, ecg, ciphertexts.getArity(), elGamal, publicKey)
+    val proveShuffle: java.util.function.Function[Tuple, (MixProofDTO, Tuple)] = { shuffledVs =>
+      logger.trace("Mixer: shuffle proof..")
 
-    val privateInputShuffle: Tuple = Tuple.getInstance(psi, permutationCommitmentRandomizations, rs)
-    val publicInputShuffle: Tuple = Tuple.getInstance(permutationCommitment, ciphertexts, shuffledVs)
+      val spg: ReEncryptionShuffleProofSystem = ReEncryptionShuffleProofSystem.getInstance(challengeGenerator, ecg, ciphertexts.getArity(), elGamal, publicKey)
 
-    logger.trace("Mixer: shuffle proof, generating..")
+      val privateInputShuffle: Tuple = Tuple.getInstance(psi, permutationCommitmentRandomizations, rs)
+      val publicInputShuffle: Tuple = Tuple.getInstance(permutationCommitment, ciphertexts, shuffledVs)
 
-    val mixProof: Tuple = spg.generate(privateInputShuffle, publicInputShuffle)
-    val eValues2 = spg.getEValues(mixProof).asInstanceOf[Tuple]
+      logger.trace("Mixer: shuffle proof, generating..")
 
-    // FIXME conversion bug code
-    // val commitment = spg.getCommitment(mixProof).convertToString
-    // logger.info(s"*** commitment $commitment")
-    // spg.getCommitmentSpace.asInstanceOf[AbstractSet[_,_]].getElementFrom(commitment)
+      val mixProof: Tuple = spg.generate(privateInputShuffle, publicInputShuffle)
+      val eValues2 = spg.getEValues(mixProof).asInstanceOf[Tuple]
 
-    val mixProofDTO = MixProofDTO(spg.getCommitment(mixProof).convertToString(),
-      spg.getChallenge(mixProof).convertToString(),
-      spg.getResponse(mixProof).convertToString(),
-      eValues2.asScala.par.map(x => x.convertToString).seq.toSeq)
+      // FIXME conversion bug code
+      // val commitment = spg.getCommitment(mixProof).convertToString
+      // logger.info(s"*** commitment $commitment")
+      // spg.getCommitmentSpace.asInstanceOf[AbstractSet[_,_]].getElementFrom(commitment)
 
-    val permutationProofDTO = Await.result(permutationProofFuture, Duration.Inf)
+      val mixProofDTO = MixProofDTO(spg.getCommitment(mixProof).convertToString(),
+        spg.getChallenge(mixProof).convertToString(),
+        spg.getResponse(mixProof).convertToString(),
+        eValues2.asScala.par.map(x => x.convertToString).seq.toSeq)
 
-    val shuffleProofDTO = ShuffleProofDTO(mixProofDTO, permutationProofDTO, permutationCommitment.convertToString)
+      (mixProofDTO, shuffledVs)
+    }
+    val mixProofFuture = shuffleFuture.thenApplyAsync[(MixProofDTO, Tuple)](proveShuffle, executor)
 
-    val votesString: Seq[String] = shuffledVs.asScala.par.map( x => x.convertToString ).seq.toList
+    permutationProofFuture.thenCombine[(MixProofDTO, Tuple), (ShuffleResultDTO, Tuple)](mixProofFuture, {
+      case (permutationProofDTO, (mixProofDTO, shuffledVs)) =>
+        val shuffleProofDTO = ShuffleProofDTO(mixProofDTO, permutationProofDTO, permutationCommitment.convertToString)
+        val votesString: Seq[String] = shuffledVs.asScala.par.map( x => x.convertToString ).seq.toList
 
-    ShuffleResultDTO(shuffleProofDTO, votesString)
+        (ShuffleResultDTO(shuffleProofDTO, votesString), shuffledVs)
+    })
   }
 }
\ No newline at end of file
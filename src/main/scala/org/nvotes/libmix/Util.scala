@@ -8,13 +8,22 @@ import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
 import ch.bfh.unicrypt.math.algebra.general.classes.Pair
 import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
 import ch.bfh.unicrypt.crypto.encoder.classes.ZModPrimeToGStarModSafePrime
+import ch.bfh.unicrypt.crypto.encoder.classes.ZModToECZModPrime
+import ch.bfh.unicrypt.crypto.encoder.interfaces.Encoder
+import org.nvotes.libmix.encoder.ExponentialEncoder
+import org.nvotes.libmix.mpservice.MPService
+import org.nvotes.libmix.mpservice.ModPowService
 import ch.bfh.unicrypt.math.algebra.general.classes.ProductSet
 import ch.bfh.unicrypt.helper.converter.classes.biginteger.ByteArrayToBigInteger
 import ch.bfh.unicrypt.helper.converter.classes.bytearray.BigIntegerToByteArray
 import ch.bfh.unicrypt.helper.converter.classes.bytearray.StringToByteArray
 import ch.bfh.unicrypt.helper.converter.classes.biginteger.BigIntegerToBigInteger
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractCyclicGroup
+import ch.bfh.unicrypt.math.algebra.general.interfaces.CyclicGroup
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModElement
+import ch.bfh.unicrypt.math.algebra.additive.classes.ECZModPrime
 import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarMod
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
 import ch.bfh.unicrypt.helper.random.deterministic.CTR_DRBG
 import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteSequence
 import ch.bfh.unicrypt.helper.math.MathUtil
@@ -24,6 +33,10 @@ import ch.bfh.unicrypt.helper.hash.HashMethod
 
 import java.util.List
 import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 import scala.collection.JavaConverters._
 
 /**
@@ -31,7 +44,7 @@ import scala.collection.JavaConverters._
  */
 object Util {
 
-  val useGmp = getEnvBoolean("libmix.gmp")
+  lazy val useGmp = getEnvBoolean("libmix.gmp") && org.nvotes.libmix.mpservice.ModPowServiceRegistry.gmpAvailable
   // obsolete, remove
   val generatorParallelism = 10
 
@@ -40,6 +53,11 @@ object Util {
     sys.props.get(variable).getOrElse("false").toBoolean
   }
 
+  /** Returns an integer system property, specified with -Dname=value */
+  def getEnvInt(variable: String, default: Int) = {
+    sys.props.get(variable).map(_.toInt).getOrElse(default)
+  }
+
   /** Converts a Seq of unicrypt Elements to a unicrypt Tuple */
   def tupleFromSeq(items: Seq[Element[_]]) = {
     Tuple.getInstance(items:_*)
@@ -53,7 +71,7 @@ object Util {
 
   /** Returns random elements from the encryption space, useful to generate
     random encryptions faster than encrypting known plaintexts */
-  def getRandomVotes(size: Int, generator: GStarModElement, publicKey: GStarModElement) = {
+  def getRandomVotes(size: Int, generator: Element[_], publicKey: Element[_]) = {
     val elGamal = ElGamalEncryptionScheme.getInstance(generator)
 
     (1 to size).par.map { _ =>
@@ -63,7 +81,7 @@ object Util {
 
   /** Returns random elements from the encryption space as Strings, useful to generate
     random encryptions faster than encrypting known plaintexts */
-  def getRandomVotesStr(size: Int, generator: GStarModElement, publicKey: GStarModElement) = {
+  def getRandomVotesStr(size: Int, generator: Element[_], publicKey: Element[_]) = {
     val elGamal = ElGamalEncryptionScheme.getInstance(generator)
 
     (1 to size).par.map { _ =>
@@ -71,10 +89,38 @@ object Util {
     }
   }
 
+  /** Threads of proofExecutor, libmix.proof-threads (default: available processors) */
+  val proofThreads = getEnvInt("libmix.proof-threads", Runtime.getRuntime.availableProcessors)
+
+  /** Default executor of the proof stages of Mixer.shuffleAsync and Verifier.verifyShuffleAsync */
+  lazy val proofExecutor: ExecutorService = Executors.newFixedThreadPool(math.max(1, proofThreads),
+    ModPowService.daemonThreads("libmix-proof"))
+
+  /** Waits for the future, throwing the exception it completed with rather than a CompletionException */
+  def join[T](future: CompletableFuture[T]): T = {
+    try {
+      future.join()
+    }
+    catch {
+      case e: CompletionException if e.getCause != null => throw e.getCause
+    }
+  }
+
+  /** Plaintexts must be below this bound in Schnorr groups, see ExponentialEncoder */
+  val plaintextBound = getEnvInt("libmix.plaintext-bound", 1 << 16)
+
+  /** Returns the encoder of integer plaintexts into group elements */
+  def getEncoder(cSettings: GroupSettings): Encoder = cSettings match {
+    case CryptoSettings(group, _) => ZModPrimeToGStarModSafePrime.getInstance(group)
+    case SchnorrCryptoSettings(_, generator) => ExponentialEncoder.getInstance(generator, plaintextBound)
+    case ECCryptoSettings(group, _) => ZModToECZModPrime.getInstance(group)
+  }
+
   /** Encodes and encrypts the given plaintexts, using parallelism */
-  def encryptVotes(plaintexts: Seq[Int], cSettings: CryptoSettings, publicKey: GStarModElement) = {
+  def encryptVotes(plaintexts: Seq[Int], cSettings: GroupSettings, publicKey: Element[_]) = {
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
-    val encoder = ZModPrimeToGStarModSafePrime.getInstance(cSettings.group)
+    val encoder = getEncoder(cSettings)
+    org.nvotes.libmix.mpservice.MPBridge.precompute(cSettings.generator, publicKey)
 
     plaintexts.par.map { p =>
       val message = encoder.getDomain().getElementFrom(p)
@@ -84,10 +130,10 @@ object Util {
   }
 
   /** Returns the the public key corresponding to the input string */
-  def getPublicKeyFromString(publicKey: String, generator: GStarModElement): GStarModElement = {
+  def getPublicKeyFromString(publicKey: String, generator: Element[_]): Element[_] = {
     val elGamal = ElGamalEncryptionScheme.getInstance(generator)
     val keyPairGen = elGamal.getKeyPairGenerator()
-    keyPairGen.getPublicKeySpace().getElementFrom(publicKey).asInstanceOf[GStarModElement]
+    keyPairGen.getPublicKeySpace().getElementFrom(publicKey)
   }
 
   /** Get an element from its string representation
@@ -188,6 +234,47 @@ object Util {
     generators.drop(skip).toList.asJava
   }
 
+  /** Returns independent generators for elliptic curves, using parallelism
+   *
+   *  Follows the safe prime version above: for each index, hash values are tried until one is the
+   *  x coordinate of a curve point, which is multiplied by the cofactor.
+   */
+  def parGetIndependentGeneratorsEC(group: ECZModPrime, skip: Int, size: Int): List[ECZModElement] = {
+    val domainParameterSeed = "FIPS 186-4"
+    val stringConverter = StringToByteArray.getInstance()
+    val indexCountConverter = BigIntegerToByteArray.getInstance()
+    val hashMethod = HashMethod.getInstance()
+    val converter = ByteArrayToBigInteger.getInstance(hashMethod.getHashAlgorithm().getByteLength())
+    val field = group.getFiniteField
+
+    val generators = (skip + 1 to skip + size).par.map { index =>
+      var count = 0
+      var g: ECZModElement = null
+      do {
+        count = count + 1
+        val u: Tree[ByteArray] = Tree.getInstance(stringConverter.convert(domainParameterSeed), stringConverter.convert("ggen"), indexCountConverter.convert(BigInteger.valueOf(index)), indexCountConverter.convert(BigInteger.valueOf(count)));
+        val x = field.getElement(converter.convert(hashMethod.getHashValue(u)).mod(field.getModulus))
+        if(group.contains(x)) {
+          g = group.getElement(x).selfApply(group.getCoFactor)
+        }
+      } while(g == null || g.isIdentity)
+
+      g
+    }
+
+    generators.toList.asJava
+  }
+
+  /** Returns independent generators of a prime order group, for commitments and shuffle proofs
+   *
+   *  Dispatches to GStarMod.getIndependentGeneratorsFIPS or parGetIndependentGeneratorsEC.
+   */
+  def getIndependentGenerators(group: CyclicGroup[_], skip: Int, size: Int): Tuple = group match {
+    case g: GStarMod => Tuple.getInstance(g.getIndependentGeneratorsFIPS(skip, size).asScala.toSeq:_*)
+    case g: ECZModPrime => Tuple.getInstance(parGetIndependentGeneratorsEC(g, skip, size).asScala:_*)
+    case _ => throw new IllegalArgumentException(s"No independent generators for $group")
+  }
+
   /*
 
   return Sequence.getInstance(1, index -> index + 1).map(index -> {
@@ -203,6 +290,203 @@ object Util {
 
   */
 
+  /** Values checked per parallel task by areMembers */
+  val membershipChunk = getEnvInt("libmix.membership-chunk", 256)
+
+  /** Returns true if all values are members of the safe prime group mod p, that is, quadratic residues in (0, p)
+   *
+   *  Equivalent to checking each value with GStarModSafePrime.contains. Legendre symbols are still computed one
+   *  value at a time (one native call per value with gmp), only the checks run in parallel, membershipChunk
+   *  values per task.
+   */
+  def areMembers(values: Array[BigInteger], p: BigInteger): Boolean = {
+    values.forall(v => v.signum > 0 && v.compareTo(p) < 0) &&
+    (0 until values.length by membershipChunk).par.forall { from =>
+      legendreSymbols(values, from, math.min(from + membershipChunk, values.length), p).forall(_ == 1)
+    }
+  }
+
+  /** Legendre symbols of values from until to, one native call per value if gmp is used */
+  private def legendreSymbols(values: Array[BigInteger], from: Int, to: Int, p: BigInteger): Array[Int] = {
+    if(useGmp) {
+      (from until to).map(i => com.squareup.jnagmp.Gmp.kronecker(values(i), p)).toArray
+    }
+    else {
+      (from until to).map(i => MathUtil.legendreSymbol(values(i), p)).toArray
+    }
+  }
+
+  /** Returns true if all values are members of the group
+   *
+   *  Safe prime groups are checked with legendre symbols as above. In other groups, such as Schnorr groups,
+   *  values are members if x^q = 1 for the group order q, these modpows are computed in one batch.
+   */
+  def areMembers(values: Array[BigInteger], group: GStarMod): Boolean = group match {
+    case g: GStarModSafePrime => areMembers(values, g.getModulus)
+    case _ =>
+      val p = group.getModulus
+      values.forall(v => v.signum > 0 && v.compareTo(p) < 0) && {
+        val results = new Array[BigInteger](values.length)
+        MPService.compute(values, Array.fill(values.length)(group.getOrder), values.length, p, results)
+        results.forall(_ == BigInteger.ONE)
+      }
+  }
+
+  /** The string form of a GStarMod element and of an ElGamal ciphertext */
+  private val ElementPattern = "([0-9]+)".r
+  private val CiphertextPattern = "\\[\"([0-9]+)\"\\|\"([0-9]+)\"\\]".r
+  private val TuplePattern = "\\[(\"[0-9]+\"(?:\\|\"[0-9]+\")*)\\]".r
+
+  /** Parses group elements, checking their membership at once with areMembers
+   *
+   *  Returns the same elements as fromString(group, _) for each value. If any value is not
+   *  a valid element, falls back to fromString, which reports the first invalid one.
+   */
+  def elementsFromStrings(group: GStarMod, values: Seq[String]): Seq[GStarModElement] = {
+    val parsed = values.par.map {
+      case ElementPattern(v) => new BigInteger(v)
+      case _ => null
+    }.seq.toArray
+    if(!parsed.contains(null) && areMembers(parsed, group)) {
+      parsed.map(group.getElementUnchecked(_)).toSeq
+    }
+    else {
+      values.par.map(fromString(group, _).asInstanceOf[GStarModElement]).seq
+    }
+  }
+
+  /** Parses elements of the settings' group, checking GStarMod elements at once with elementsFromStrings
+   *
+   *  Elliptic curve points have no costly membership check and are parsed with getElementFrom.
+   */
+  def elementsFromStrings(values: Seq[String], cSettings: GroupSettings): Seq[Element[_]] = cSettings.group match {
+    case g: GStarMod => elementsFromStrings(g, values)
+    case g => values.par.map(g.getElementFrom(_): Element[_]).seq
+  }
+
+  /** Parses a tuple of group elements, such as a permutation commitment, checking their membership at once
+   *
+   *  Returns the same tuple as fromString(space, value). Falls back to fromString if the value is not a tuple of
+   *  space's arity or any value is not a valid element.
+   */
+  def tupleFromString(group: GStarMod, space: ProductSet, value: String): Tuple = value match {
+    case TuplePattern(values) =>
+      val parsed = values.split('|').map(v => new BigInteger(v.substring(1, v.length - 1)))
+      if(parsed.length == space.getArity && areMembers(parsed, group)) {
+        Tuple.getInstance(parsed.map(group.getElementUnchecked(_): Element[_]):_*)
+      }
+      else {
+        fromString(space, value).asInstanceOf[Tuple]
+      }
+    case _ => fromString(space, value).asInstanceOf[Tuple]
+  }
+
+  /** Parses ElGamal ciphertexts, checking the membership of all their components at once with areMembers
+   *
+   *  Returns the same elements as fromString on the encryption space for each vote. If any vote is not a
+   *  valid ciphertext, falls back to fromString, which reports the first invalid one. Elliptic curve
+   *  points have no costly membership check (the curve equation) and are always parsed with fromString.
+   */
+  def ciphertextsFromStrings(votes: Seq[String], cSettings: GroupSettings): Seq[Pair] = {
+    val space = ElGamalEncryptionScheme.getInstance(cSettings.generator).getEncryptionSpace
+    val gStarMod = cSettings.group match {
+      case g: GStarMod => Some(g)
+      case _ => None
+    }
+    val checked = gStarMod.flatMap { group =>
+      val parsed = votes.par.map {
+        case CiphertextPattern(a, b) => Array(new BigInteger(a), new BigInteger(b))
+        case _ => null
+      }.seq.toArray
+      if(!parsed.contains(null) && areMembers(parsed.flatten, group)) {
+        Some(parsed.par.map { v =>
+          space.getElement(group.getElementUnchecked(v(0)), group.getElementUnchecked(v(1))).asInstanceOf[Pair]
+        }.seq.toSeq)
+      }
+      else {
+        None
+      }
+    }
+
+    checked.getOrElse(votes.par.map(fromString(space, _).asInstanceOf[Pair]).seq)
+  }
+
+  /** Bytes per element in the compact encoding of a safe prime group, the byte length of q = (p - 1) / 2 */
+  def compactLength(group: GStarModSafePrime): Int = (group.getOrder.bitLength + 7) / 8
+
+  /** Encodes safe prime group elements in compactLength bytes each, concatenated
+   *
+   *  Since p = 3 mod 4, exactly one of x and p - x is a quadratic residue, so the element x is identified
+   *  by min(x, p - x), which is at most q. This value is written unsigned, big endian, left padded with zeros.
+   *  The encoding is canonical, and every value in [1, q] decodes to a member, see elementsFromCompact.
+   */
+  def elementsToCompact(group: GStarModSafePrime, elements: Seq[GStarModElement]): Array[Byte] = {
+    val p = group.getModulus
+    val length = compactLength(group)
+    val ret = new Array[Byte](length * elements.size)
+    elements.zipWithIndex.par.foreach { case (e, i) =>
+      val x = e.getValue
+      val raw = x.min(p.subtract(x)).toByteArray
+      // toByteArray may add a leading zero sign byte
+      val n = math.min(raw.length, length)
+      System.arraycopy(raw, raw.length - n, ret, (i + 1) * length - n, n)
+    }
+
+    ret
+  }
+
+  /** Decodes elements encoded with elementsToCompact
+   *
+   *  The residue among y and p - y is recovered from the legendre symbol of y, computed in parallel chunks as in
+   *  areMembers. Throws IllegalArgumentException if the length is not a multiple of compactLength or a value
+   *  is not in [1, q], the decoded elements need no further membership check.
+   */
+  def elementsFromCompact(group: GStarModSafePrime, bytes: Array[Byte]): Seq[GStarModElement] = {
+    val p = group.getModulus
+    val q = group.getOrder
+    val length = compactLength(group)
+    if(bytes.length % length != 0) {
+      throw new IllegalArgumentException(s"Compact encoding length ${bytes.length} is not a multiple of $length")
+    }
+    val values = (0 until bytes.length / length).par.map { i =>
+      new BigInteger(1, java.util.Arrays.copyOfRange(bytes, i * length, (i + 1) * length))
+    }.seq.toArray
+    if(!values.forall(v => v.signum > 0 && v.compareTo(q) <= 0)) {
+      throw new IllegalArgumentException("Compact encoding value out of range")
+    }
+
+    (0 until values.length by membershipChunk).par.flatMap { from =>
+      val to = math.min(from + membershipChunk, values.length)
+      legendreSymbols(values, from, to, p).zipWithIndex.map { case (symbol, i) =>
+        val y = values(from + i)
+        group.getElementUnchecked(if(symbol == 1) y else p.subtract(y))
+      }
+    }.seq
+  }
+
+  /** Encodes ElGamal ciphertexts as base64 strings of their two compact encoded components */
+  def ciphertextsToCompact(ciphertexts: Seq[Pair], cSettings: CryptoSettings): Seq[String] = {
+    val encoder = java.util.Base64.getEncoder
+    ciphertexts.par.map { c =>
+      val elements = Seq(c.getFirst, c.getSecond).map(_.asInstanceOf[GStarModElement])
+      encoder.encodeToString(elementsToCompact(cSettings.group, elements))
+    }.seq
+  }
+
+  /** Decodes ciphertexts encoded with ciphertextsToCompact, see elementsFromCompact */
+  def ciphertextsFromCompact(votes: Seq[String], cSettings: CryptoSettings): Seq[Pair] = {
+    val length = 2 * compactLength(cSettings.group)
+    val decoder = java.util.Base64.getDecoder
+    val bytes = votes.par.map(decoder.decode(_)).seq
+    if(!bytes.forall(_.length == length)) {
+      throw new IllegalArgumentException(s"Compact ciphertext length is not $length")
+    }
+    val space = ElGamalEncryptionScheme.getInstance(cSettings.generator).getEncryptionSpace
+    val elements = elementsFromCompact(cSettings.group, bytes.toArray.flatten)
+
+    elements.grouped(2).map(e => space.getElement(e(0), e(1)).asInstanceOf[Pair]).toList
+  }
+
   /** Returns the legendre symbol, optionally using native gmp code */
   def legendreSymbol(a: BigInteger, p: BigInteger): Int = {
     if(useGmp) {
@@ -2,6 +2,8 @@ package org.nvotes.libmix
 
 import java.nio.ByteOrder
 import java.nio.charset.Charset
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
 
 import ch.bfh.unicrypt.crypto.keygenerator.interfaces.KeyPairGenerator
 import ch.bfh.unicrypt.crypto.proofsystem.challengegenerator.classes.FiatShamirSigmaChallengeGenerator
@@ -33,7 +35,6 @@ import ch.bfh.unicrypt.math.function.classes.MultiIdentityFunction
 import ch.bfh.unicrypt.math.function.classes.ProductFunction
 import ch.bfh.unicrypt.math.function.interfaces.Function
 import ch.bfh.unicrypt.math.algebra.general.abstracts.AbstractSet
-import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement
 
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
@@ -61,12 +62,17 @@ object Verifier extends ProofSettings {
 
   val logger = LoggerFactory.getLogger(Verifier.getClass)
 
+  /** Verify shuffle proofs with small exponent batch verification, see libmix.batch-verify */
+  val batchVerify = Util.getEnvBoolean("libmix.batch-verify")
+  /** Soundness of batch verification, a false proof is accepted with probability at most 2^-bits */
+  val batchVerifyBits = Util.getEnvInt("libmix.batch-verify-bits", 64)
+
   /**
    * Verifies a key share.
    *
    * Returns true if the proof is correct, false otherwise.
    */
-  def verifyKeyShare(share: EncryptionKeyShareDTO, cSettings: CryptoSettings, proverId: String)
+  def verifyKeyShare(share: EncryptionKeyShareDTO, cSettings: GroupSettings, proverId: String)
     : Boolean = {
 
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
@@ -98,8 +104,8 @@ object Verifier extends ProofSettings {
    *
    * Returns true if the proof is correct, false otherwise.
    */
-  def verifyPartialDecryption(pd: PartialDecryptionDTO, votes: Seq[Tuple], cSettings: CryptoSettings,
-    proverId: String, publicShare: GStarModElement, invert: Boolean =true): Boolean = {
+  def verifyPartialDecryption(pd: PartialDecryptionDTO, votes: Seq[Tuple], cSettings: GroupSettings,
+    proverId: String, publicShare: Element[_], invert: Boolean =true): Boolean = {
 
     val encryptionGenerator = cSettings.generator
     val generatorFunctions = votes.par.map { x: Tuple =>
@@ -119,7 +125,7 @@ object Verifier extends ProofSettings {
         MultiIdentityFunction.getInstance(cSettings.group.getZModOrder(), generatorFunctions.length),
         ProductFunction.getInstance(generatorFunctions :_*))
     }
-    val pdElements = pd.partialDecryptions.par.map(cSettings.group.getElementFrom(_)).seq
+    val pdElements = Util.elementsFromStrings(pd.partialDecryptions, cSettings)
 
     val publicInput: Pair = Pair.getInstance(publicShare, Tuple.getInstance(pdElements:_*))
     val otherInput = StringMonoid.getInstance(Alphabet.UNICODE_BMP).getElement(proverId)
@@ -145,7 +151,20 @@ object Verifier extends ProofSettings {
    * Returns true if the proof is correct, false otherwise.
    */
   def verifyShuffle(votes: Tuple, shuffledVotes: Tuple, shuffleProof: ShuffleProofDTO,
-    proverId: String, publicKey: GStarModElement, cSettings: CryptoSettings): Boolean = {
+    proverId: String, publicKey: Element[_], cSettings: GroupSettings): Boolean = {
+
+    Util.join(verifyShuffleAsync(votes, shuffledVotes, shuffleProof, proverId, publicKey, cSettings, Util.proofExecutor))
+  }
+
+  /**
+   * Verifies a mix without waiting for the proofs
+   *
+   * The proofs are deserialized on the calling thread, then the permutation proof and the shuffle proof are
+   * verified concurrently on the given executor. The future completes with true if both are correct.
+   */
+  def verifyShuffleAsync(votes: Tuple, shuffledVotes: Tuple, shuffleProof: ShuffleProofDTO,
+    proverId: String, publicKey: Element[_], cSettings: GroupSettings, executor: Executor)
+    : CompletableFuture[Boolean] = {
 
     val elGamal = ElGamalEncryptionScheme.getInstance(cSettings.generator)
 
@@ -165,7 +184,12 @@ object Verifier extends ProofSettings {
 
     val pcs: PermutationCommitmentScheme = PermutationCommitmentScheme.getInstance(cSettings.group, votes.getArity())
 
-    val permutationCommitment = Util.fromString(pcs.getCommitmentSpace(), shuffleProof.permutationCommitment)
+    val permutationCommitment = cSettings match {
+      case CryptoSettings(group, _) => Util.tupleFromString(group, pcs.getCommitmentSpace, shuffleProof.permutationCommitment)
+      case SchnorrCryptoSettings(group, _) =>
+        Util.tupleFromString(group, pcs.getCommitmentSpace, shuffleProof.permutationCommitment)
+      case _ => Util.fromString(pcs.getCommitmentSpace(), shuffleProof.permutationCommitment)
+    }
 
     logger.trace("Getting values..")
 
@@ -189,9 +213,7 @@ object Verifier extends ProofSettings {
     logger.trace("Converting bridging commitments..")
 
     // bridging commitments: GStarmod
-    val bridgingCommitments = permutationProofDTO.bridgingCommitments.par.map { x =>
-      Util.fromString(cSettings.group, x)
-    }.seq
+    val bridgingCommitments = Util.elementsFromStrings(permutationProofDTO.bridgingCommitments, cSettings)
 
     logger.trace("Converting permutation e values..")
 
@@ -214,15 +236,32 @@ object Verifier extends ProofSettings {
     val publicInputPermutation = permutationCommitment
 
     logger.trace("Verifying..")
-    val v1 = pcps.verify(permutationProof, publicInputPermutation)
-
-    val v2 = spg.verify(mixProof, publicInputShuffle)
+    // the two proofs are independent and verified concurrently
+    val v1 = CompletableFuture.supplyAsync[Boolean](() =>
+      if(batchVerify) {
+        pcps.batchVerify(permutationProof, publicInputPermutation, batchVerifyBits)
+      }
+      else {
+        pcps.verify(permutationProof, publicInputPermutation)
+      }
+    , executor)
+
+    val v2 = CompletableFuture.supplyAsync[Boolean](() =>
+      if(batchVerify) {
+        spg.batchVerify(mixProof, publicInputShuffle, batchVerifyBits)
+      }
+      else {
+        spg.verify(mixProof, publicInputShuffle)
+      }
+    , executor)
 
     val v3 = publicInputPermutation.isEquivalent(publicInputShuffle.getFirst())
 
-    val result = v1 && v2 && v3
-    logger.debug(s"Verifier: verifyShuffle: $result")
+    v1.thenCombine[Boolean, Boolean](v2, (r1, r2) => {
+      val result = r1 && r2 && v3
+      logger.debug(s"Verifier: verifyShuffle: $result")
 
-    result
+      result
+    })
   }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+
+/** Barrett modular reduction for a fixed modulus
+ *
+ *  BigInteger.mod uses long division, which for 2048 bit operands costs
+ *  several times a multiplication. With a precomputed mu = 4^k / modulus a
+ *  reduction takes two multiplications and some shifts instead.
+ */
+class BarrettReducer(val mod: BigInteger) {
+
+  private val k = mod.bitLength
+  private val mu = BigInteger.ONE.shiftLeft(2 * k).divide(mod)
+
+  /** Reduces x modulo the modulus, requires 0 <= x < modulus^2 */
+  def reduce(x: BigInteger): BigInteger = {
+    var r = x.subtract(x.shiftRight(k - 1).multiply(mu).shiftRight(k + 1).multiply(mod))
+    while(r.compareTo(mod) >= 0) {
+      r = r.subtract(mod)
+    }
+    r
+  }
+
+  /** Returns a * b mod modulus, requires 0 <= a, b < modulus */
+  def multiply(a: BigInteger, b: BigInteger): BigInteger = reduce(a.multiply(b))
+}
@@ -0,0 +1,257 @@
+package org.nvotes.libmix.mpservice
+
+import java.lang.management.ManagementFactory
+import java.math.BigInteger
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.CompletableFuture
+import java.util.LinkedHashMap
+import java.util.Map.Entry
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+
+import scala.collection.mutable
+
+import org.nvotes.libmix.Util
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Cache key, a modpow request with the exponent replaced by its SHA-256 digest
+ *
+ *  Exponents are often secret (randomizers, witnesses), keys do not retain them. The hash
+ *  code is computed once, from the digest and the base.
+ */
+final class ModPowKey private (val base: BigInteger, val powDigest: Array[Byte], val mod: BigInteger) {
+
+  override val hashCode: Int = ByteBuffer.wrap(powDigest).getInt * 31 + base.hashCode
+
+  override def equals(other: Any): Boolean = other match {
+    case k: ModPowKey =>
+      hashCode == k.hashCode && MessageDigest.isEqual(powDigest, k.powDigest) && base == k.base && mod == k.mod
+    case _ => false
+  }
+}
+
+object ModPowKey {
+
+  private val digest = new ThreadLocal[MessageDigest] {
+    override def initialValue() = MessageDigest.getInstance("SHA-256")
+  }
+
+  def apply(base: BigInteger, pow: BigInteger, mod: BigInteger): ModPowKey = {
+    new ModPowKey(base, digest.get.digest(pow.toByteArray), mod)
+  }
+}
+
+/** JMX view of a CachingModPowService, registered as org.nvotes.libmix:type=ModPowCache */
+trait ModPowCacheMXBean {
+  def getHits: Long
+  def getMisses: Long
+  def getDuplicates: Long
+  def getHitRate: Double
+  def getSize: Int
+}
+
+/** ModPowService decorator that memoizes results of repeated modpows
+ *
+ *  Holds at most maxEntries results, evicting the least recently used (lru) or oldest (fifo)
+ *  entry. Requests repeated within one batch are computed once and the result is copied to
+ *  each. Only cache misses are passed to the underlying service, as one batch.
+ *
+ *  Entries are spread over stripes by key hash, each with its own lock held for a single
+ *  lookup or insertion, and evict within the stripe. Keys keep a digest of the exponent,
+ *  but results stay on the heap until evicted or cleared, see clear.
+ */
+class CachingModPowService(underlying: ModPowService, maxEntries: Int, lru: Boolean,
+  stripes: Int = CachingModPowService.stripes) extends ModPowService with ModPowCacheMXBean {
+
+  private val perStripe = math.max(1, maxEntries / stripes)
+
+  private val cache = Array.fill(stripes) {
+    new LinkedHashMap[ModPowKey, BigInteger](16, 0.75f, lru) {
+      override def removeEldestEntry(eldest: Entry[ModPowKey, BigInteger]) = size > perStripe
+    }
+  }
+
+  private val hits = new LongAdder
+  private val misses = new LongAdder
+  private val duplicates = new LongAdder
+
+  def getHits = hits.sum
+  def getMisses = misses.sum
+  def getDuplicates = duplicates.sum
+  def getSize = cache.map(stripe => stripe.synchronized { stripe.size }).sum
+
+  /** Removes all cached results */
+  def clear(): Unit = cache.foreach(stripe => stripe.synchronized { stripe.clear() })
+
+  private def stripe(key: ModPowKey) = cache((key.hashCode & Int.MaxValue) % stripes)
+
+  private def get(key: ModPowKey): BigInteger = {
+    val s = stripe(key)
+    s.synchronized { s.get(key) }
+  }
+
+  private def put(key: ModPowKey, value: BigInteger): Unit = {
+    val s = stripe(key)
+    s.synchronized { s.put(key, value) }
+  }
+
+  /** Fraction of requests not computed by the underlying service, cache hits or batch duplicates */
+  def getHitRate = {
+    val total = getHits + getMisses + getDuplicates
+    if(total == 0) 0.0 else (getHits + getDuplicates).toDouble / total
+  }
+
+  /** Compute modular exponentiation for a list of inputs */
+  def compute(work: Array[ModPow]): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    work.indices.groupBy(work(_).mod).foreach { case (mod, indices) =>
+      val computed = new Array[BigInteger](indices.length)
+      compute(indices.map(work(_).base).toArray, indices.map(work(_).pow).toArray, indices.length, mod, computed)
+      indices.zip(computed).foreach { case (i, r) => results(i) = r }
+    }
+
+    results
+  }
+
+  /** Compute modular exponentiation for a list of inputs with common modulus */
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    compute(work.map(_.base), work.map(_.pow), work.length, mod, results)
+
+    results
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+
+    val lookup = this.lookup(bases, pows, count, mod, results)
+    if(lookup.missing.nonEmpty) {
+      val computed = new Array[BigInteger](lookup.missing.length)
+      underlying.compute(lookup.missing.map(bases(_)), lookup.missing.map(pows(_)), lookup.missing.length, mod,
+        computed)
+      lookup.store(computed, results)
+    }
+    lookup.copyDuplicates(results)
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking
+   *
+   *  Cached results are written immediately, misses are passed on to the underlying service's computeAsync.
+   */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    val lookup = this.lookup(bases, pows, count, mod, results)
+    if(lookup.missing.isEmpty) {
+      lookup.copyDuplicates(results)
+      CompletableFuture.completedFuture(results)
+    }
+    else {
+      underlying.computeAsync(lookup.missing.map(bases(_)), lookup.missing.map(pows(_)), lookup.missing.length, mod,
+        new Array[BigInteger](lookup.missing.length)).thenApply[Array[BigInteger]] { computed =>
+        lookup.store(computed, results)
+        lookup.copyDuplicates(results)
+        results
+      }
+    }
+  }
+
+  /** Cached results of one batch, the keys and indices of the requests to compute */
+  private class Lookup(keys: Array[ModPowKey], source: Array[Int], val missing: Array[Int]) {
+
+    /** Writes and caches the computed results of the missing requests */
+    def store(computed: Array[BigInteger], results: Array[BigInteger]): Unit = {
+      for(k <- missing.indices) {
+        results(missing(k)) = computed(k)
+        put(keys(missing(k)), computed(k))
+      }
+    }
+
+    /** Copies results to requests repeated within the batch */
+    def copyDuplicates(results: Array[BigInteger]): Unit = {
+      for(i <- source.indices) {
+        if(source(i) != i) results(i) = results(source(i))
+      }
+    }
+  }
+
+  /** Writes cached results, finds duplicates (source, the index each request copies) and misses */
+  private def lookup(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Lookup = {
+
+    val keys = (0 until count).par.map(i => ModPowKey(bases(i), pows(i), mod)).toArray
+    val first = new mutable.HashMap[ModPowKey, Int]()
+    val source = new Array[Int](count)
+    val missing = new mutable.ArrayBuffer[Int]()
+    for(i <- 0 until count) {
+      first.get(keys(i)) match {
+        case Some(j) =>
+          source(i) = j
+          duplicates.increment()
+        case None =>
+          first.put(keys(i), i)
+          source(i) = i
+          val cached = get(keys(i))
+          if(cached != null) {
+            results(i) = cached
+            hits.increment()
+          }
+          else {
+            missing += i
+            misses.increment()
+          }
+      }
+    }
+
+    new Lookup(keys, source, missing.toArray)
+  }
+
+  /** Compute modular exponentiation for a list of inputs, returns inputs also */
+  def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
+    val results = compute(work, mod)
+    work.zip(results).map { case (x, r) => ModPowResult(x.base, x.pow, mod, r) }
+  }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus with the underlying service */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    underlying.multiExp(bases, exps, mod)
+  }
+
+  override def toString = {
+    val policy = if(lru) "lru" else "fifo"
+    f"CachingModPowService($underlying, maxEntries = $maxEntries, $policy, stripes = $stripes, hit rate = $getHitRate%.3f)"
+  }
+}
+
+/** Cache configuration, libmix.cache, libmix.cache-size (entries) and libmix.cache-policy (lru or fifo) */
+object CachingModPowService {
+
+  val logger = LoggerFactory.getLogger(classOf[CachingModPowService])
+
+  val enabled = Util.getEnvBoolean("libmix.cache")
+  val maxEntries = Util.getEnvInt("libmix.cache-size", 4096)
+  val stripes = Util.getEnvInt("libmix.cache-stripes", 16)
+  val lru = sys.props.get("libmix.cache-policy").getOrElse("lru") match {
+    case "lru" => true
+    case "fifo" => false
+    case policy => throw new IllegalArgumentException(s"Unknown cache policy '$policy', use lru or fifo")
+  }
+
+  /** Returns a configured cache over the given service, registered with JMX */
+  def apply(underlying: ModPowService): CachingModPowService = {
+    val service = new CachingModPowService(underlying, maxEntries, lru)
+    try {
+      val name = new ObjectName("org.nvotes.libmix:type=ModPowCache")
+      val server = ManagementFactory.getPlatformMBeanServer
+      if(!server.isRegistered(name)) server.registerMBean(service, name)
+    }
+    catch {
+      case e: Exception => logger.warn(s"Could not register ModPowCache MXBean: $e")
+    }
+
+    service
+  }
+}
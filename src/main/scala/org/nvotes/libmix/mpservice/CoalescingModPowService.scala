@@ -0,0 +1,201 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+import scala.collection.mutable.ArrayBuffer
+import scala.concurrent.blocking
+
+import org.nvotes.libmix.Util
+
+/** ModPowService decorator that merges batches submitted concurrently by different threads
+ *
+ *  Parallel code (for example .par over votes) opens one MPBridge scope per worker thread,
+ *  each submitting a small batch. Here the first batch to arrive waits up to windowMicros,
+ *  or until maxSize modpows are pending, and the calling thread then computes all pending
+ *  batches as one batch per modulus with the underlying service. Results are copied back
+ *  and the other submitting threads are released to replay.
+ *
+ *  Batches of at least maxSize modpows are passed directly to the underlying service, as are batches
+ *  submitted while no other batch is pending or being computed, so that a lone caller does not wait.
+ */
+class CoalescingModPowService(underlying: ModPowService, windowMicros: Long, maxSize: Int) extends ModPowService {
+
+  /** A batch waiting to be computed */
+  private class Pending(val bases: Array[BigInteger], val pows: Array[BigInteger], val count: Int,
+    val mod: BigInteger, val results: Array[BigInteger]) {
+    val done = new CountDownLatch(1)
+    @volatile var error: Throwable = null
+  }
+
+  private val lock = new ReentrantLock()
+  private val full = lock.newCondition()
+  private var pending = new ArrayBuffer[Pending]()
+  private var pendingSize = 0
+  private var waiting = false
+  // calls in compute, pending or being computed
+  private var active = 0
+
+  /** Compute modular exponentiation for a list of inputs */
+  def compute(work: Array[ModPow]): Array[BigInteger] = underlying.compute(work)
+
+  /** Compute modular exponentiation for a list of inputs with common modulus */
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    compute(work.map(_.base), work.map(_.pow), work.length, mod, results)
+
+    results
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+
+    if(count >= maxSize) {
+      underlying.compute(bases, pows, count, mod, results)
+    }
+    else if(count > 0) {
+      val batch = new Pending(bases, pows, count, mod, results)
+      val role = add(batch)
+      try {
+        if(role == CoalescingModPowService.Direct) {
+          underlying.compute(bases, pows, count, mod, results)
+        }
+        else {
+          if(role == CoalescingModPowService.Leader) {
+            dispatch(blocking { awaitWindow() })
+          }
+          blocking {
+            batch.done.await()
+          }
+          if(batch.error != null) throw batch.error
+        }
+      }
+      finally {
+        leave()
+      }
+    }
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking
+   *
+   *  Passed on to the underlying service: asynchronous batches do not block a thread while waiting, so
+   *  there is nothing to merge them for.
+   */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    underlying.computeAsync(bases, pows, count, mod, results)
+  }
+
+  /** Adds a pending batch, returns Direct if nothing else is active, Leader if the caller should collect and
+   *  dispatch the window, or Follower
+   */
+  private def add(batch: Pending): Int = {
+    lock.lock()
+    try {
+      active += 1
+      if(active == 1) {
+        CoalescingModPowService.Direct
+      }
+      else {
+        pending += batch
+        pendingSize += batch.count
+        if(pendingSize >= maxSize) full.signal()
+        val first = !waiting
+        waiting = true
+
+        if(first) CoalescingModPowService.Leader else CoalescingModPowService.Follower
+      }
+    }
+    finally {
+      lock.unlock()
+    }
+  }
+
+  /** Called when a batch added with add has been computed */
+  private def leave(): Unit = {
+    lock.lock()
+    try {
+      active -= 1
+    }
+    finally {
+      lock.unlock()
+    }
+  }
+
+  /** Waits until the window elapses or maxSize modpows are pending, returns the pending batches */
+  private def awaitWindow(): Seq[Pending] = {
+    lock.lock()
+    try {
+      var remaining = TimeUnit.MICROSECONDS.toNanos(windowMicros)
+      while(pendingSize < maxSize && remaining > 0) {
+        remaining = full.awaitNanos(remaining)
+      }
+      val ret = pending
+      pending = new ArrayBuffer[Pending]()
+      pendingSize = 0
+      waiting = false
+
+      ret
+    }
+    finally {
+      lock.unlock()
+    }
+  }
+
+  /** Computes the batches as one batch per modulus, then releases their threads */
+  private def dispatch(batches: Seq[Pending]): Unit = {
+    batches.groupBy(_.mod).foreach { case (mod, group) =>
+      try {
+        val total = group.map(_.count).sum
+        val bases = new Array[BigInteger](total)
+        val pows = new Array[BigInteger](total)
+        val results = new Array[BigInteger](total)
+        var offset = 0
+        group.foreach { b =>
+          System.arraycopy(b.bases, 0, bases, offset, b.count)
+          System.arraycopy(b.pows, 0, pows, offset, b.count)
+          offset += b.count
+        }
+        underlying.compute(bases, pows, total, mod, results)
+        offset = 0
+        group.foreach { b =>
+          System.arraycopy(results, offset, b.results, 0, b.count)
+          offset += b.count
+        }
+      }
+      catch {
+        case e: Throwable => group.foreach(_.error = e)
+      }
+      finally {
+        group.foreach(_.done.countDown())
+      }
+    }
+  }
+
+  /** Compute modular exponentiation for a list of inputs, returns inputs also */
+  def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = underlying.computeDebug(work, mod)
+
+  /** Compute Prod(bases_i^exps_i) mod modulus with the underlying service */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    underlying.multiExp(bases, exps, mod)
+  }
+
+  override def toString = s"CoalescingModPowService($underlying, windowMicros = $windowMicros, maxSize = $maxSize)"
+}
+
+/** Coalescing configuration, libmix.coalesce, libmix.coalesce-window (microseconds) and libmix.coalesce-size */
+object CoalescingModPowService {
+
+  val enabled = Util.getEnvBoolean("libmix.coalesce")
+  val windowMicros = Util.getEnvInt("libmix.coalesce-window", 500)
+  val maxSize = Util.getEnvInt("libmix.coalesce-size", 1024)
+
+  /** Roles of a caller of compute, see add */
+  private val Direct = 0
+  private val Leader = 1
+  private val Follower = 2
+}
@@ -0,0 +1,176 @@
+package org.nvotes.libmix.mpservice
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.LongAdder
+import javax.management.ObjectName
+
+import scala.collection.JavaConverters._
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Latency histogram with power of two microsecond buckets
+ *
+ *  Bucket k counts latencies in [2^(k-1), 2^k) microseconds, bucket 0 those below one microsecond.
+ */
+class LatencyHistogram {
+
+  private val buckets = Array.fill(LatencyHistogram.Buckets)(new LongAdder)
+  private val count = new LongAdder
+  private val total = new LongAdder
+
+  def record(nanos: Long): Unit = {
+    val micros = TimeUnit.NANOSECONDS.toMicros(nanos)
+    val bucket = math.min(64 - java.lang.Long.numberOfLeadingZeros(micros), LatencyHistogram.Buckets - 1)
+    buckets(bucket).increment()
+    count.increment()
+    total.add(nanos)
+  }
+
+  def snapshot: HistogramSnapshot = HistogramSnapshot(count.sum, total.sum, buckets.map(_.sum))
+
+  def reset(): Unit = {
+    buckets.foreach(_.reset())
+    count.reset()
+    total.reset()
+  }
+}
+
+object LatencyHistogram {
+  val Buckets = 32
+}
+
+/** Histogram values at some point in time */
+case class HistogramSnapshot(count: Long, totalNanos: Long, buckets: Array[Long]) {
+
+  def meanMillis: Double = if(count == 0) 0 else totalNanos / count / 1000000.0
+
+  /** Upper bound in milliseconds of the bucket containing the given percentile (0 - 100) */
+  def percentileMillis(p: Double): Double = {
+    val target = math.ceil(count * p / 100).toLong
+    var seen = 0L
+    var k = 0
+    while(k < buckets.length - 1 && seen + buckets(k) < target) {
+      seen += buckets(k)
+      k += 1
+    }
+    (1L << k) / 1000.0
+  }
+
+  override def toString = f"n = $count mean = $meanMillis%.2f ms p50 <= ${percentileMillis(50)}%.2f ms p99 <= ${percentileMillis(99)}%.2f ms"
+}
+
+/** Counters and histograms for one named extraction site */
+class SiteMetrics(val name: String) {
+
+  val runs = new LongAdder
+  val modPows = new LongAdder
+  val record = new LatencyHistogram
+  val compute = new LatencyHistogram
+  val replay = new LatencyHistogram
+
+  def snapshot: SiteSnapshot = SiteSnapshot(name, runs.sum, modPows.sum, record.snapshot, compute.snapshot, replay.snapshot)
+
+  def reset(): Unit = {
+    runs.reset()
+    modPows.reset()
+    Seq(record, compute, replay).foreach(_.reset())
+  }
+}
+
+/** Site metrics values at some point in time */
+case class SiteSnapshot(name: String, runs: Long, modPows: Long, record: HistogramSnapshot, compute: HistogramSnapshot,
+  replay: HistogramSnapshot) {
+
+  override def toString = s"$name: runs = $runs modpows = $modPows record [$record] compute [$compute] replay [$replay]"
+}
+
+/** JMX view of ExtractionMetrics, registered as org.nvotes.libmix:type=ExtractionMetrics */
+trait ExtractionMetricsMXBean {
+  def getSites: Array[String]
+  def getSummary: Array[String]
+  def getExtractedModPows: Long
+  def getDirectModPows: Long
+  def reset(): Unit
+}
+
+/** Always on metrics for MPBridge extraction
+ *
+ *  Each run or defer scope reports its modpow count and its record, compute and replay latencies
+ *  under a site name. Counters are LongAdders, so updates from many threads do not contend.
+ *  Metrics are available with snapshot, through JMX and, if the JVM supports Java Flight Recorder,
+ *  as org.nvotes.libmix.Extraction events.
+ */
+object ExtractionMetrics {
+
+  val logger = LoggerFactory.getLogger(ExtractionMetrics.getClass)
+
+  private val sites = new ConcurrentHashMap[String, SiteMetrics]()
+  private val direct = new LongAdder
+
+  /** Whether flight recorder events can be created in this JVM */
+  val jfrAvailable: Boolean = {
+    try {
+      Class.forName("jdk.jfr.Event")
+      true
+    }
+    catch {
+      case e: ClassNotFoundException => false
+    }
+  }
+
+  register()
+
+  /** Returns the metrics for the given site, created on first use */
+  def site(name: String): SiteMetrics = sites.computeIfAbsent(name, n => new SiteMetrics(n))
+
+  /** Records one extraction scope, times in nanoseconds */
+  def record(name: String, modPows: Int, recordNanos: Long, computeNanos: Long, replayNanos: Long): Unit = {
+    val s = site(name)
+    s.runs.increment()
+    s.modPows.add(modPows)
+    s.record.record(recordNanos)
+    if(modPows > 0) {
+      s.compute.record(computeNanos)
+      s.replay.record(replayNanos)
+    }
+    if(jfrAvailable) {
+      ExtractionEvent.emit(name, modPows, recordNanos, computeNanos, replayNanos)
+    }
+  }
+
+  /** Counts a modpow computed directly, outside an extraction scope */
+  def directModPow(): Unit = direct.increment()
+
+  def directModPows: Long = direct.sum
+
+  def extractedModPows: Long = sites.values.asScala.map(_.modPows.sum).sum
+
+  /** Returns the current values of all sites, by name */
+  def snapshot(): Seq[SiteSnapshot] = sites.values.asScala.map(_.snapshot).toSeq.sortBy(_.name)
+
+  def reset(): Unit = {
+    sites.values.asScala.foreach(_.reset())
+    direct.reset()
+  }
+
+  private def register(): Unit = {
+    try {
+      val bean = new ExtractionMetricsMXBean {
+        def getSites = snapshot().map(_.name).toArray
+        def getSummary = snapshot().map(_.toString).toArray
+        def getExtractedModPows = extractedModPows
+        def getDirectModPows = directModPows
+        def reset() = ExtractionMetrics.reset()
+      }
+      val name = new ObjectName("org.nvotes.libmix:type=ExtractionMetrics")
+      val server = ManagementFactory.getPlatformMBeanServer
+      if(!server.isRegistered(name)) server.registerMBean(bean, name)
+    }
+    catch {
+      case e: Exception => logger.warn(s"Could not register ExtractionMetrics MXBean: $e")
+    }
+  }
+}
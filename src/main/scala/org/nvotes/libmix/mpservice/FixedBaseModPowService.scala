@@ -0,0 +1,274 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+import org.nvotes.libmix.Util
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Precomputed table for modular exponentiation with a fixed base
+ *
+ *  Fixed window method: the exponent is split into digits of window bits,
+ *  row j of the table holds base^(d * 2^(window * j)) for every digit d, so that
+ *  an exponentiation needs one multiplication per non-zero digit and no squarings.
+ *
+ *  Exponents up to the bit length of the modulus are supported.
+ */
+class FixedBaseTable(val base: BigInteger, val mod: BigInteger, val window: Int) {
+
+  val bits = mod.bitLength
+  private val rows = (bits + window - 1) / window
+  private val digits = 1 << window
+  private val reducer = new BarrettReducer(mod)
+
+  private val table: Array[Array[BigInteger]] = {
+    val t = Array.ofDim[BigInteger](rows, digits)
+    var rowBase = base.mod(mod)
+    for(j <- 0 until rows) {
+      t(j)(1) = rowBase
+      for(d <- 2 until digits) {
+        t(j)(d) = reducer.multiply(t(j)(d - 1), rowBase)
+      }
+      rowBase = reducer.multiply(t(j)(digits - 1), rowBase)
+    }
+    t
+  }
+
+  /** Returns true if the exponent can be computed with this table */
+  def covers(exp: BigInteger): Boolean = exp.signum >= 0 && exp.bitLength <= bits
+
+  /** Computes base^exp mod modulus, the exponent must be covered by the table */
+  def pow(exp: BigInteger): BigInteger = {
+    // big endian, may have a leading sign byte
+    val bytes = exp.toByteArray
+    var result: BigInteger = null
+    var j = 0
+    while(j < rows) {
+      val d = digit(bytes, j * window)
+      if(d != 0) {
+        result = if(result == null) table(j)(d) else reducer.multiply(result, table(j)(d))
+      }
+      j += 1
+    }
+
+    if(result == null) BigInteger.ONE.mod(mod) else result
+  }
+
+  /** Extracts the window bits starting at the given bit offset */
+  private def digit(bytes: Array[Byte], offset: Int): Int = {
+    var d = 0
+    var b = 0
+    while(b < window) {
+      val bit = offset + b
+      val index = bytes.length - 1 - (bit >>> 3)
+      if(index >= 0 && ((bytes(index) >>> (bit & 7)) & 1) == 1) {
+        d |= (1 << b)
+      }
+      b += 1
+    }
+    d
+  }
+}
+
+/** Fixed base ModPowService decorator
+ *
+ *  Requests whose (base, modulus) has been registered with precompute are computed
+ *  with a precomputed table, the rest are passed on to the underlying service.
+ */
+class FixedBaseModPowService(val underlying: ModPowService) extends ModPowService {
+
+  /** Compute modular exponentiation for a list of inputs */
+  def compute(work: Array[ModPow]): Array[BigInteger] = {
+    val tables = work.map(x => FixedBaseModPowService.table(x.base, x.mod, x.pow))
+    val misses = work.indices.filter(tables(_) == null).toArray
+    val results = new Array[BigInteger](work.length)
+
+    if(misses.length > 0) {
+      val computed = underlying.compute(misses.map(work(_)))
+      misses.indices.foreach(i => results(misses(i)) = computed(i))
+    }
+    work.indices.par.foreach { i =>
+      if(tables(i) != null) results(i) = tables(i).pow(work(i).pow)
+    }
+
+    results
+  }
+
+  /** Compute modular exponentiation for a list of inputs with common modulus */
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
+    val tables = work.map(x => FixedBaseModPowService.table(x.base, mod, x.pow))
+    val misses = work.indices.filter(tables(_) == null).toArray
+    if(misses.length == work.length) {
+      underlying.compute(work, mod)
+    }
+    else {
+      val results = new Array[BigInteger](work.length)
+      if(misses.length > 0) {
+        val computed = underlying.compute(misses.map(work(_)), mod)
+        misses.indices.foreach(i => results(misses(i)) = computed(i))
+      }
+      work.indices.par.foreach { i =>
+        if(tables(i) != null) results(i) = tables(i).pow(work(i).pow)
+      }
+
+      results
+    }
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    val tables = Array.tabulate(count)(i => FixedBaseModPowService.table(bases(i), mod, pows(i)))
+    val misses = tables.indices.filter(tables(_) == null).toArray
+    if(misses.length == count) {
+      underlying.compute(bases, pows, count, mod, results)
+    }
+    else {
+      if(misses.length > 0) {
+        val computed = new Array[BigInteger](misses.length)
+        underlying.compute(misses.map(bases(_)), misses.map(pows(_)), misses.length, mod, computed)
+        misses.indices.foreach(i => results(misses(i)) = computed(i))
+      }
+      tables.indices.par.foreach { i =>
+        if(tables(i) != null) results(i) = tables(i).pow(pows(i))
+      }
+    }
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking
+   *
+   *  Misses are passed on to the underlying service's computeAsync, table lookups run on ModPowService.executor.
+   */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    val tables = Array.tabulate(count)(i => FixedBaseModPowService.table(bases(i), mod, pows(i)))
+    val misses = tables.indices.filter(tables(_) == null).toArray
+    if(misses.length == count) {
+      underlying.computeAsync(bases, pows, count, mod, results)
+    }
+    else {
+      val hits = CompletableFuture.runAsync(() => {
+        tables.indices.foreach { i =>
+          if(tables(i) != null) results(i) = tables(i).pow(pows(i))
+        }
+      }, ModPowService.executor)
+      if(misses.length == 0) {
+        hits.thenApply[Array[BigInteger]](_ => results)
+      }
+      else {
+        underlying.computeAsync(misses.map(bases(_)), misses.map(pows(_)), misses.length, mod,
+          new Array[BigInteger](misses.length)).thenCombine[Void, Array[BigInteger]](hits, (computed, _) => {
+          misses.indices.foreach(i => results(misses(i)) = computed(i))
+          results
+        })
+      }
+    }
+  }
+
+  /** Compute modular exponentiation for a list of inputs, returns inputs also */
+  def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
+    val results = compute(work, mod)
+    work.zip(results).map { case (x, r) => ModPowResult(x.base, x.pow, mod, r) }
+  }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus with the underlying service */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    underlying.multiExp(bases, exps, mod)
+  }
+}
+
+/** Fixed base tables keyed by (base, modulus), at most maxTables of them
+ *
+ *  When the bound is reached, the table least recently passed to precompute is evicted. Lookups
+ *  do not lock and do not change the order, precompute is called whenever a scheme or proof system
+ *  using the base is created. Tables are built outside the lock, at most once per key.
+ */
+class FixedBaseTables(val maxTables: Int, val window: Int) {
+
+  val logger = LoggerFactory.getLogger(classOf[FixedBaseTables])
+
+  private val tables = new ConcurrentHashMap[(BigInteger, BigInteger), FixedBaseTable]()
+
+  /** Keys with a reserved slot, least recently precomputed first, guarded by itself */
+  private val slots = new java.util.LinkedHashMap[(BigInteger, BigInteger), java.lang.Boolean](16, 0.75f, true)
+
+  /** Builds and caches the table for the given base and modulus, if not present */
+  def precompute(base: BigInteger, mod: BigInteger): Unit = {
+    if(maxTables > 0) {
+      val key = (base, mod)
+      slots.synchronized {
+        slots.put(key, true)
+        evict()
+      }
+      tables.computeIfAbsent(key, { _ =>
+        val now = System.currentTimeMillis
+        val table = new FixedBaseTable(base, mod, window)
+        logger.trace(s"Fixed base table (${mod.bitLength} bits): [${System.currentTimeMillis - now} ms]")
+        table
+      })
+      // the slot may have been taken by other keys while the table was built
+      slots.synchronized {
+        if(!slots.containsKey(key)) tables.remove(key)
+      }
+    }
+  }
+
+  /** Frees slots beyond maxTables, least recently precomputed first, holding the slots lock */
+  private def evict(): Unit = {
+    val keys = slots.keySet.iterator
+    while(slots.size > maxTables) {
+      val (base, mod) = keys.next()
+      keys.remove()
+      tables.remove((base, mod))
+      logger.info(s"Fixed base tables: $maxTables tables reached (libmix.fixed-base-max), evicting a ${mod.bitLength} bit table")
+    }
+  }
+
+  /** Returns the table for the given base and modulus, or null if there is none */
+  def table(base: BigInteger, mod: BigInteger): FixedBaseTable = {
+    if(tables.isEmpty) null else tables.get((base, mod))
+  }
+
+  /** Returns the number of tables */
+  def size: Int = tables.size
+
+  /** Removes all tables */
+  def clear(): Unit = slots.synchronized {
+    slots.clear()
+    tables.clear()
+  }
+}
+
+/** Registry of fixed base tables, keyed by (base, modulus)
+ *
+ *  Tables are only built when libmix.fixed-base is set, and at most
+ *  libmix.fixed-base-max tables are kept, see FixedBaseTables.
+ */
+object FixedBaseModPowService {
+
+  val enabled = Util.getEnvBoolean("libmix.fixed-base")
+  val window = Util.getEnvInt("libmix.fixed-base-window", 6)
+  val maxTables = Util.getEnvInt("libmix.fixed-base-max", 16)
+
+  private val tables = new FixedBaseTables(maxTables, window)
+
+  /** Builds and caches the table for the given base and modulus, if not present */
+  def precompute(base: BigInteger, mod: BigInteger): Unit = {
+    if(enabled) tables.precompute(base, mod)
+  }
+
+  /** Returns the table for the given base and modulus, or null if there is none */
+  def table(base: BigInteger, mod: BigInteger): FixedBaseTable = tables.table(base, mod)
+
+  /** Returns the table for the given base and modulus if it covers the exponent, or null */
+  def table(base: BigInteger, mod: BigInteger, pow: BigInteger): FixedBaseTable = {
+    val t = table(base, mod)
+    if(t != null && t.covers(pow)) t else null
+  }
+
+  /** Removes all tables */
+  def clear(): Unit = tables.clear()
+}
@@ -0,0 +1,113 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.concurrent.RecursiveAction
+
+import com.squareup.jnagmp.Gmp
+
+import org.nvotes.libmix.Util
+
+/** Parallel and native ModPowService implementation with a dedicated ForkJoinPool
+ *
+ *  Batches are split recursively into contiguous index ranges of at most chunkSize
+ *  requests, each range writes its results directly into the result array.
+ *  Uses GMP (via jna-gmp) to make native modpow calls.
+ *
+ *  Unlike GmpParallelModPowService the pool is not shared with other scala
+ *  parallel collections, and its parallelism can be set independently.
+ */
+class ForkJoinModPowService(val parallelism: Int, val chunkSize: Int) extends ModPowService {
+
+  private val pool = new ForkJoinPool(parallelism)
+
+  /** Applies f to ranges of at most chunkSize indices covering [from, to), splitting the range in halves */
+  private class RangeAction(from: Int, to: Int, f: (Int, Int) => Unit) extends RecursiveAction {
+    override def compute(): Unit = {
+      if(to - from <= chunkSize) {
+        f(from, to)
+      }
+      else {
+        val mid = (from + to) >>> 1
+        ForkJoinTask.invokeAll(new RangeAction(from, mid, f), new RangeAction(mid, to, f))
+      }
+    }
+  }
+
+  /** Applies f to ranges covering [0, count) on the pool */
+  private def forRanges(count: Int)(f: (Int, Int) => Unit): Unit = {
+    if(count > 0) pool.invoke(new RangeAction(0, count, f))
+  }
+
+  /** Computes one modpow, called on a pool thread */
+  protected def modPow(base: BigInteger, pow: BigInteger, mod: BigInteger): BigInteger = {
+    Gmp.modPowInsecure(base, pow, mod)
+  }
+
+  /** Computes the modpows with index in [from, to), called on a pool thread */
+  protected def computeRange(bases: Array[BigInteger], pows: Array[BigInteger], from: Int, to: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    var i = from
+    while(i < to) {
+      results(i) = modPow(bases(i), pows(i), mod)
+      i += 1
+    }
+  }
+
+  /** Compute modular exponentiation for a list of inputs */
+  def compute(work: Array[ModPow]): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    forRanges(work.length) { (from, to) =>
+      for(i <- from until to) results(i) = modPow(work(i).base, work(i).pow, work(i).mod)
+    }
+
+    results
+  }
+
+  /** Compute modular exponentiation for a list of inputs with common modulus */
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    compute(work.map(_.base), work.map(_.pow), work.length, mod, results)
+
+    results
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    forRanges(count) { (from, to) => computeRange(bases, pows, from, to, mod, results) }
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, on the pool without blocking */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    CompletableFuture.supplyAsync[Array[BigInteger]](() => {
+      compute(bases, pows, count, mod, results)
+      results
+    }, pool)
+  }
+
+  /** Compute modular exponentiation for a list of inputs, returns inputs also */
+  def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
+    val results = compute(work, mod)
+    work.zip(results).map { case (x, r) => ModPowResult(x.base, x.pow, mod, r) }
+  }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus, windows are computed in parallel */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    MultiExp.multiExp(bases, exps, mod, true)
+  }
+
+  override def toString = s"${getClass.getSimpleName}(parallelism = $parallelism, chunkSize = $chunkSize)"
+}
+
+/** Default ForkJoin service, configured with libmix.parallelism and libmix.chunk-size */
+object ForkJoinModPowService {
+
+  val parallelism = Util.getEnvInt("libmix.parallelism", Runtime.getRuntime.availableProcessors)
+  val chunkSize = Util.getEnvInt("libmix.chunk-size", 8)
+
+  lazy val default = new ForkJoinModPowService(parallelism, chunkSize)
+}
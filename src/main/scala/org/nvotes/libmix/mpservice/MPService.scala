@@ -1,6 +1,10 @@
 package org.nvotes.libmix.mpservice
 
 import java.math.BigInteger
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
 
 import scala.concurrent.duration.DurationInt
 import scala.collection._
@@ -8,6 +12,8 @@ import scala.util.Try
 import scala.util.Success
 import com.squareup.jnagmp.Gmp
 
+import org.nvotes.libmix.Util
+
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
@@ -36,11 +42,58 @@ trait ModPowService {
   /** Compute modular exponentiation for a list of inputs with common modulus */
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger]
 
+  /** Compute modular exponentiation for the first count inputs with common modulus
+   *
+   *  Inputs are passed as parallel arrays, results are written in place.
+   */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit
+
   /** Compute modular exponentiation for a list of inputs
    *
    *  Returns (also) the inputs to the computation to allow checking for consistency.
    */
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult]
+
+  /** Compute Prod(bases_i^exps_i) mod modulus, exponents must be non negative */
+  def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    MultiExp.multiExp(bases, exps, mod)
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking
+   *
+   *  Returns a future of the results array, completed once all results are written. By default
+   *  compute runs on ModPowService.executor. Decorators pass the request on to the computeAsync of
+   *  the service they wrap, so that services with their own threads are not wrapped in another task.
+   */
+  def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    CompletableFuture.supplyAsync[Array[BigInteger]](() => {
+      compute(bases, pows, count, mod, results)
+      results
+    }, ModPowService.executor)
+  }
+
+  /** Compute modular exponentiation for a list of inputs with common modulus, without blocking */
+  def computeAsync(work: Array[ModPow2], mod: BigInteger): CompletableFuture[Array[BigInteger]] = {
+    computeAsync(work.map(_.base), work.map(_.pow), work.length, mod, new Array[BigInteger](work.length))
+  }
+}
+
+object ModPowService {
+  /** Threads of executor, libmix.async-threads (default: available processors) */
+  val asyncThreads = Util.getEnvInt("libmix.async-threads", Runtime.getRuntime.availableProcessors)
+
+  /** Runs computeAsync for services without their own threads, excess tasks are queued */
+  lazy val executor: ExecutorService = Executors.newFixedThreadPool(math.max(1, asyncThreads),
+    daemonThreads("mpservice-async"))
+
+  /** Creates daemon threads with the given name */
+  def daemonThreads(name: String): ThreadFactory = { r: Runnable =>
+    val thread = new Thread(r, name)
+    thread.setDaemon(true)
+    thread
+  }
 }
 
 /**
@@ -48,7 +101,33 @@ trait ModPowService {
  */
 object MPService extends ModPowService {
   /** The underlying service */
-  val service = GmpParallelModPowService
+  val service: ModPowService = {
+    val native = ModPowServiceRegistry.service
+    val remote = if(RemoteModPowService.enabled) {
+      new RemoteModPowService(RemoteModPowService.workers, native)
+    }
+    else {
+      native
+    }
+    val coalescing = if(CoalescingModPowService.enabled) {
+      new CoalescingModPowService(remote, CoalescingModPowService.windowMicros, CoalescingModPowService.maxSize)
+    }
+    else {
+      remote
+    }
+    val compute = if(CachingModPowService.enabled) {
+      CachingModPowService(coalescing)
+    }
+    else {
+      coalescing
+    }
+    if(FixedBaseModPowService.enabled) {
+      new FixedBaseModPowService(compute)
+    }
+    else {
+      compute
+    }
+  }
 
   /** Compute modular exponentiation for a list of inputs */
   def compute(work: Array[ModPow]): Array[BigInteger] = service.compute(work)
@@ -56,9 +135,27 @@ object MPService extends ModPowService {
   /** Compute modular exponentiation for a list of inputs with common modulus */
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = service.compute(work, mod)
 
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = service.compute(bases, pows, count, mod, results)
+
   /** Compute modular exponentiation for a list of inputs, returns inputs also */
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = service.computeDebug(work, mod)
 
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+    service.computeAsync(bases, pows, count, mod, results)
+  }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus, exponents must be non negative */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    service.multiExp(bases, exps, mod)
+  }
+
+  /** Builds a fixed base table for subsequent modpows with the given base and modulus */
+  def precompute(base: BigInteger, mod: BigInteger): Unit = FixedBaseModPowService.precompute(base, mod)
+
   override def toString = service.getClass.toString
 }
 
@@ -75,6 +172,16 @@ object SequentialModPowService extends ModPowService {
   /** Compute modular exponentiation for a list of inputs with common modulus */
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.map(x => x.base.modPow(x.pow, mod))
 
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    var i = 0
+    while(i < count) {
+      results(i) = bases(i).modPow(pows(i), mod)
+      i += 1
+    }
+  }
+
   /** Compute modular exponentiation for a list of inputs, returns inputs also */
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
     work.map(x => ModPowResult(x.base, x.pow, mod, x.base.modPow(x.pow, mod))).seq.toArray
@@ -98,10 +205,21 @@ object GmpParallelModPowService extends ModPowService {
     work.par.map(x => Gmp.modPowInsecure(x.base, x.pow, mod)).seq.toArray
   }
 
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    (0 until count).par.foreach(i => results(i) = Gmp.modPowInsecure(bases(i), pows(i), mod))
+  }
+
   /** Compute modular exponentiation for a list of inputs, returns inputs also */
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
     work.par.map(x => ModPowResult(x.base, x.pow, mod, Gmp.modPowInsecure(x.base, x.pow, mod))).seq.toArray
   }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus, windows are computed in parallel */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    MultiExp.multiExp(bases, exps, mod, true)
+  }
 }
 
 /** Parallel and native ModPowService implementation
@@ -115,10 +233,21 @@ object ParallelModPowService extends ModPowService {
   /** Compute modular exponentiation for a list of inputs with common modulus */
   def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = work.par.map(x => x.base.modPow(x.pow, mod)).seq.toArray
 
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    (0 until count).par.foreach(i => results(i) = bases(i).modPow(pows(i), mod))
+  }
+
   /** Compute modular exponentiation for a list of inputs, returns inputs also */
   def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
     work.par.map(x => ModPowResult(x.base, x.pow, mod, x.base.modPow(x.pow, mod))).seq.toArray
   }
+
+  /** Compute Prod(bases_i^exps_i) mod modulus, windows are computed in parallel */
+  override def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger): BigInteger = {
+    MultiExp.multiExp(bases, exps, mod, true)
+  }
 }
 
 /** Scala version of MPBridge
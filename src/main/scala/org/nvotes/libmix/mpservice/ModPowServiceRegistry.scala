@@ -0,0 +1,173 @@
+package org.nvotes.libmix.mpservice
+
+import java.lang.reflect.InvocationTargetException
+import java.math.BigInteger
+import java.util.Random
+
+import scala.collection.immutable.ListMap
+
+import com.squareup.jnagmp.Gmp
+
+import org.nvotes.libmix.Util
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Selects the ModPowService used by MPService and the implementation of direct modpows
+ *
+ *  The batched service is chosen with libmix.mpservice=<name>, where name is one of the
+ *  registered names or the fully qualified name of a ModPowService class (with a no argument
+ *  constructor) or object. Direct (non extracted) modpows use gmp if libmix.gmp=true.
+ *
+ *  With libmix.calibrate=true both choices are instead made at startup by timing each available
+ *  implementation on libmix.calibrate-batch (default 64) modpows with a libmix.calibrate-bits
+ *  (default 2048) modulus. An explicitly set libmix.mpservice is not overridden.
+ *
+ *  Implementations that require gmp are skipped with a warning if it cannot be loaded.
+ */
+object ModPowServiceRegistry {
+
+  val logger = LoggerFactory.getLogger(ModPowServiceRegistry.getClass)
+
+  val configured = sys.props.get("libmix.mpservice")
+  val calibrate = Util.getEnvBoolean("libmix.calibrate")
+  val calibrateBits = Util.getEnvInt("libmix.calibrate-bits", 2048)
+  val calibrateBatch = Util.getEnvInt("libmix.calibrate-batch", 64)
+
+  /** Registered services, by name */
+  private val services: ListMap[String, () => ModPowService] = ListMap(
+    "sequential" -> (() => SequentialModPowService),
+    "parallel" -> (() => ParallelModPowService),
+    "gmp-parallel" -> (() => GmpParallelModPowService),
+    "forkjoin" -> (() => ForkJoinModPowService.default)
+  )
+
+  /** Registered services that make native calls */
+  private val native = Set("gmp-parallel", "forkjoin")
+
+  /** Whether the gmp library can be loaded, logs a warning if not */
+  lazy val gmpAvailable: Boolean = {
+    try {
+      Gmp.checkLoaded()
+      true
+    }
+    catch {
+      case e: LinkageError =>
+        logger.warn(s"gmp is not available, using java modpows: $e")
+        false
+      case e: RuntimeException =>
+        logger.warn(s"gmp is not available, using java modpows: $e")
+        false
+    }
+  }
+
+  /** Returns the registered names */
+  def names: Seq[String] = services.keys.toSeq
+
+  /** Returns the registered names whose service can run on this host */
+  def available: Seq[String] = names.filter(name => !native.contains(name) || gmpAvailable)
+
+  /** Returns the service with the given registered or class name */
+  def get(name: String): ModPowService = {
+    services.get(name).map(_()).getOrElse(load(name))
+  }
+
+  /** Loads a ModPowService object, or class with a public no argument constructor, by name */
+  private def load(name: String): ModPowService = {
+    val service = try {
+      Class.forName(name + "$").getField("MODULE$").get(null)
+    }
+    catch {
+      case e: ClassNotFoundException =>
+        try {
+          Class.forName(name).getDeclaredConstructor().newInstance()
+        }
+        catch {
+          case e: ClassNotFoundException =>
+            throw new IllegalArgumentException(s"Unknown ModPowService '$name', registered: ${names.mkString(", ")}")
+          case e: NoSuchMethodException =>
+            throw new IllegalArgumentException(s"ModPowService '$name' has no no argument constructor", e)
+          case e @ (_: InstantiationException | _: IllegalAccessException) =>
+            throw new IllegalArgumentException(s"ModPowService '$name' cannot be instantiated: $e", e)
+          case e: InvocationTargetException =>
+            throw new IllegalArgumentException(s"ModPowService '$name' constructor failed: ${e.getCause}", e.getCause)
+        }
+    }
+    service match {
+      case s: ModPowService => s
+      case _ => throw new IllegalArgumentException(s"$name is not a ModPowService")
+    }
+  }
+
+  /** The batched service and whether direct modpows use gmp */
+  private lazy val selection: (ModPowService, Boolean) = {
+    val requestedGmp = Util.getEnvBoolean("libmix.gmp")
+    if(requestedGmp && !gmpAvailable) {
+      logger.warn("libmix.gmp=true but gmp is not available, direct modpows will use java")
+    }
+
+    val selected = configured.map { name =>
+      if(native.contains(name) && !gmpAvailable) {
+        logger.warn(s"libmix.mpservice=$name requires gmp, using parallel")
+        ParallelModPowService
+      }
+      else {
+        get(name)
+      }
+    }
+
+    if(calibrate) {
+      val (service, useGmp) = calibrated(selected)
+      logger.info(s"Calibrated at $calibrateBits bits, batch $calibrateBatch: service = $service, direct gmp = $useGmp")
+      (service, useGmp)
+    }
+    else {
+      val default = if(gmpAvailable) GmpParallelModPowService else ParallelModPowService
+      (selected.getOrElse(default), requestedGmp && gmpAvailable)
+    }
+  }
+
+  /** The service for batches of extracted modpows */
+  def service: ModPowService = selection._1
+
+  /** Whether direct modpows use gmp */
+  def useGmp: Boolean = selection._2
+
+  /** Times the available implementations, returns the fastest batched service (unless given) and direct choice */
+  private def calibrated(selected: Option[ModPowService]): (ModPowService, Boolean) = {
+    val random = new Random()
+    val mod = new BigInteger(calibrateBits, random).setBit(calibrateBits - 1).setBit(0)
+    val bases = Array.fill(calibrateBatch)(new BigInteger(calibrateBits, random).mod(mod))
+    val pows = Array.fill(calibrateBatch)(new BigInteger(calibrateBits, random))
+    val results = new Array[BigInteger](calibrateBatch)
+
+    val service = selected.getOrElse {
+      val timings = available.map { name =>
+        val candidate = get(name)
+        val t = time(candidate.compute(bases, pows, calibrateBatch, mod, results))
+        logger.info(s"Calibration: $name ${t / 1000000} ms")
+        (candidate, t)
+      }
+      timings.minBy(_._2)._1
+    }
+
+    val useGmp = gmpAvailable && {
+      val java = time(for(i <- 0 until calibrateBatch) bases(i).modPow(pows(i), mod))
+      val gmp = time(for(i <- 0 until calibrateBatch) Gmp.modPowInsecure(bases(i), pows(i), mod))
+      logger.info(s"Calibration: direct java ${java / 1000000} ms, gmp ${gmp / 1000000} ms")
+      gmp < java
+    }
+
+    (service, useGmp)
+  }
+
+  /** Returns the best of two runs in nanoseconds, after one warm up run */
+  private def time(f: => Unit): Long = {
+    f
+    (1 to 2).map { _ =>
+      val now = System.nanoTime
+      f
+      System.nanoTime - now
+    }.min
+  }
+}
@@ -0,0 +1,209 @@
+package org.nvotes.libmix.mpservice
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.IOException
+import java.math.BigInteger
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Worker process for RemoteModPowService
+ *
+ *  Accepts connections on the given server socket and computes the requested
+ *  modpows with the given (local) service, see ModPowProtocol. Connections that
+ *  fail the shared secret handshake or send oversized requests are closed, as are
+ *  connections beyond maxConnections and those that stay silent past the timeouts
+ *  (milliseconds).
+ */
+class ModPowWorker(val server: ServerSocket, val service: ModPowService,
+  val maxConnections: Int = ModPowProtocol.maxConnections,
+  val handshakeTimeout: Int = ModPowProtocol.handshakeTimeout,
+  val idleTimeout: Int = ModPowProtocol.idleTimeout) extends Runnable {
+
+  val logger = LoggerFactory.getLogger(classOf[ModPowWorker])
+
+  /** Permits for open connections */
+  private val connections = new Semaphore(maxConnections)
+
+  /** At most maxConnections threads, one per connection */
+  private val pool = Executors.newCachedThreadPool(ModPowService.daemonThreads("modpow-worker"))
+
+  def port = server.getLocalPort
+
+  /** Accepts connections until the server socket is closed */
+  def run(): Unit = {
+    logger.info(s"ModPowWorker: listening on port $port with $service")
+    while(!server.isClosed) {
+      try {
+        val socket = server.accept()
+        if(connections.tryAcquire()) {
+          pool.execute(() => serve(socket))
+        }
+        else {
+          logger.warn(s"ModPowWorker: $maxConnections connections open, closing ${socket.getRemoteSocketAddress}")
+          socket.close()
+        }
+      }
+      catch {
+        case e: IOException => if(!server.isClosed) logger.error("ModPowWorker: accept failed", e)
+      }
+    }
+  }
+
+  /** Serves requests on one connection until it is closed, releasing its permit */
+  private def serve(socket: Socket): Unit = {
+    try {
+      socket.setTcpNoDelay(true)
+      socket.setSoTimeout(handshakeTimeout)
+      val in = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+      val out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+      ModPowProtocol.handshake(in, out, true)
+      socket.setSoTimeout(idleTimeout)
+      var count = ModPowProtocol.readCount(in)
+      while(count >= 0) {
+        val mod = ModPowProtocol.readBigInteger(in, ModPowProtocol.maxModulusBytes)
+        if(mod.signum <= 0) throw new IOException("Invalid modulus")
+        val modBytes = mod.toByteArray.length
+        val bases = new Array[BigInteger](count)
+        val pows = new Array[BigInteger](count)
+        for(i <- 0 until count) {
+          bases(i) = ModPowProtocol.readBigInteger(in, modBytes)
+          pows(i) = ModPowProtocol.readBigInteger(in, 2 * modBytes)
+        }
+        val results = new Array[BigInteger](count)
+        val now = System.currentTimeMillis
+        service.compute(bases, pows, count, mod, results)
+        logger.trace(s"ModPowWorker: $count modpows [${System.currentTimeMillis - now} ms]")
+
+        out.writeInt(count)
+        results.foreach(ModPowProtocol.writeBigInteger(out, _))
+        out.flush()
+
+        count = ModPowProtocol.readCount(in)
+      }
+    }
+    catch {
+      case e: EOFException =>
+      case e: SocketTimeoutException => logger.info(s"ModPowWorker: closing silent connection ${socket.getRemoteSocketAddress}")
+      case e: IOException => logger.warn("ModPowWorker: connection failed", e)
+    }
+    finally {
+      // released first, so that a peer seeing the close can connect again
+      connections.release()
+      socket.close()
+    }
+  }
+
+  /** Stops accepting connections, open connections are served until they close */
+  def close(): Unit = {
+    server.close()
+    pool.shutdown()
+  }
+}
+
+/** Starts a worker, usage: ModPowWorker <port>
+ *
+ *  Modpows are computed with the ForkJoin service, configured with libmix.parallelism.
+ *  The worker listens on libmix.worker-bind, loopback by default. Binding to another
+ *  address requires libmix.worker-secret.
+ */
+object ModPowWorker {
+
+  val bindAddress = sys.props.get("libmix.worker-bind").getOrElse(InetAddress.getLoopbackAddress.getHostAddress)
+
+  def main(args: Array[String]): Unit = {
+    if(args.length != 1) {
+      println("Usage: ModPowWorker <port>")
+      System.exit(1)
+    }
+    new ModPowWorker(bind(args(0).toInt), ForkJoinModPowService.default).run()
+  }
+
+  /** Opens the server socket on libmix.worker-bind */
+  def bind(port: Int): ServerSocket = {
+    val address = InetAddress.getByName(bindAddress)
+    if(!address.isLoopbackAddress && ModPowProtocol.secret.isEmpty) {
+      throw new IllegalStateException(s"Set libmix.worker-secret to listen on $bindAddress")
+    }
+
+    ModPowProtocol.serverSocketFactory.createServerSocket(port, 50, address)
+  }
+
+  /** Starts a worker in this JVM on a daemon thread, port 0 picks a free port */
+  def start(port: Int, service: ModPowService, maxConnections: Int = ModPowProtocol.maxConnections,
+    handshakeTimeout: Int = ModPowProtocol.handshakeTimeout): ModPowWorker = {
+    val worker = new ModPowWorker(bind(port), service, maxConnections, handshakeTimeout)
+    val thread = new Thread(worker, "modpow-worker")
+    thread.setDaemon(true)
+    thread.start()
+
+    worker
+  }
+}
+
+/** Launches local worker JVMs, to use a worker pool on a single host or for testing
+ *
+ *  Usage: ModPowWorkerLauncher <workers> <first port>, prints the value for libmix.workers
+ */
+object ModPowWorkerLauncher {
+
+  val logger = LoggerFactory.getLogger(ModPowWorkerLauncher.getClass)
+
+  /** Launches workers on consecutive ports, waiting until they accept connections */
+  def launch(workers: Int, firstPort: Int, jvmOptions: Seq[String] = Seq()): Seq[(Process, InetSocketAddress)] = {
+    val java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"
+    val classpath = System.getProperty("java.class.path")
+
+    val processes = (0 until workers).map { w =>
+      val port = firstPort + w
+      val command = Seq(java) ++ jvmOptions ++ Seq("-cp", classpath, "org.nvotes.libmix.mpservice.ModPowWorker", port.toString)
+      val process = new ProcessBuilder(command: _*).inheritIO().start()
+
+      (process, new InetSocketAddress(ModPowWorker.bindAddress, port))
+    }
+    processes.foreach { case (process, address) => awaitWorker(process, address) }
+
+    processes
+  }
+
+  /** Waits until the worker accepts connections */
+  private def awaitWorker(process: Process, address: InetSocketAddress): Unit = {
+    val deadline = System.currentTimeMillis + 30000
+    var ready = false
+    while(!ready) {
+      try {
+        new Socket(address.getHostString, address.getPort).close()
+        ready = true
+      }
+      catch {
+        case e: IOException =>
+          if(!process.isAlive || System.currentTimeMillis > deadline) {
+            throw new IllegalStateException(s"Worker at $address did not start", e)
+          }
+          Thread.sleep(100)
+      }
+    }
+  }
+
+  def main(args: Array[String]): Unit = {
+    if(args.length != 2) {
+      println("Usage: ModPowWorkerLauncher <workers> <first port>")
+      System.exit(1)
+    }
+    val processes = launch(args(0).toInt, args(1).toInt)
+    println("-Dlibmix.workers=" + processes.map { case (_, a) => a.getHostString + ":" + a.getPort }.mkString(","))
+    processes.foreach { case (process, _) => process.waitFor() }
+  }
+}
@@ -0,0 +1,144 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+
+/** Multi-exponentiation, computes Prod(bases_i^exps_i) mod modulus
+ *
+ *  Uses Straus' interleaved window method for few bases, and Pippenger's bucket
+ *  method for many bases, choosing whichever has the lower estimated number of
+ *  modular multiplications. Exponents must be non negative, bases must be
+ *  reduced modulo the modulus.
+ */
+object MultiExp {
+
+  /** Computes Prod(bases_i^exps_i) mod modulus, optionally in parallel */
+  def multiExp(bases: Array[BigInteger], exps: Array[BigInteger], mod: BigInteger, parallel: Boolean = false): BigInteger = {
+    if(bases.length != exps.length) throw new IllegalArgumentException(bases.length + "!=" + exps.length)
+    if(exps.exists(_.signum < 0)) throw new IllegalArgumentException("negative exponent")
+
+    val n = bases.length
+    val bits = if(n == 0) 0 else exps.map(_.bitLength).max
+    if(bits == 0) {
+      BigInteger.ONE.mod(mod)
+    }
+    else {
+      val (strausWindow, strausCost) = (1 to 8).map(w => (w, bits + n.toLong * ((bits + w - 1) / w + (1 << w)))).minBy(_._2)
+      val (pippengerWindow, pippengerCost) = (1 to 20).map(c => (c, bits + ((bits + c - 1) / c) * (n.toLong + (2L << c)))).minBy(_._2)
+      val reducer = new BarrettReducer(mod)
+      val digits = new Digits(exps)
+
+      if(strausCost <= pippengerCost) {
+        straus(bases, digits, bits, strausWindow, reducer)
+      }
+      else {
+        pippenger(bases, digits, bits, pippengerWindow, reducer, parallel)
+      }
+    }
+  }
+
+  /** Interleaved fixed window exponentiation, squarings are shared by all bases */
+  private def straus(bases: Array[BigInteger], digits: Digits, bits: Int, window: Int, reducer: BarrettReducer): BigInteger = {
+    val size = 1 << window
+    val tables = bases.map { base =>
+      val t = new Array[BigInteger](size)
+      t(1) = base
+      for(d <- 2 until size) {
+        t(d) = reducer.multiply(t(d - 1), base)
+      }
+      t
+    }
+
+    val windows = (bits + window - 1) / window
+    var result: BigInteger = null
+    var k = windows - 1
+    while(k >= 0) {
+      if(result != null) {
+        for(_ <- 0 until window) result = reducer.multiply(result, result)
+      }
+      var i = 0
+      while(i < bases.length) {
+        val d = digits.get(i, k * window, window)
+        if(d != 0) {
+          result = if(result == null) tables(i)(d) else reducer.multiply(result, tables(i)(d))
+        }
+        i += 1
+      }
+      k -= 1
+    }
+
+    if(result == null) BigInteger.ONE.mod(reducer.mod) else result
+  }
+
+  /** Bucket method, each window is computed independently and then combined */
+  private def pippenger(bases: Array[BigInteger], digits: Digits, bits: Int, window: Int, reducer: BarrettReducer,
+    parallel: Boolean): BigInteger = {
+
+    val windows = (bits + window - 1) / window
+    val indices = if(parallel) (0 until windows).par else (0 until windows)
+
+    val sums = indices.map(k => windowSum(bases, digits, k * window, window, reducer)).seq
+
+    var result: BigInteger = null
+    var k = windows - 1
+    while(k >= 0) {
+      if(result != null) {
+        for(_ <- 0 until window) result = reducer.multiply(result, result)
+      }
+      if(sums(k) != null) {
+        result = if(result == null) sums(k) else reducer.multiply(result, sums(k))
+      }
+      k -= 1
+    }
+
+    if(result == null) BigInteger.ONE.mod(reducer.mod) else result
+  }
+
+  /** Returns Prod(bases_i^digit_i) for the digits at the given offset, or null if it is the identity */
+  private def windowSum(bases: Array[BigInteger], digits: Digits, offset: Int, window: Int, reducer: BarrettReducer) = {
+    val buckets = new Array[BigInteger](1 << window)
+    var i = 0
+    while(i < bases.length) {
+      val d = digits.get(i, offset, window)
+      if(d != 0) {
+        buckets(d) = if(buckets(d) == null) bases(i) else reducer.multiply(buckets(d), bases(i))
+      }
+      i += 1
+    }
+
+    // Prod(bucket_d^d) = Prod_d(Prod_(j >= d) bucket_j)
+    var running: BigInteger = null
+    var sum: BigInteger = null
+    var d = buckets.length - 1
+    while(d > 0) {
+      if(buckets(d) != null) {
+        running = if(running == null) buckets(d) else reducer.multiply(running, buckets(d))
+      }
+      if(running != null) {
+        sum = if(sum == null) running else reducer.multiply(sum, running)
+      }
+      d -= 1
+    }
+
+    sum
+  }
+
+  /** Bit windows of exponents, read from their big endian byte representation */
+  private class Digits(exps: Array[BigInteger]) {
+    private val bytes = exps.map(_.toByteArray)
+
+    def get(i: Int, offset: Int, window: Int): Int = {
+      val b = bytes(i)
+      var d = 0
+      var j = 0
+      while(j < window) {
+        val bit = offset + j
+        val index = b.length - 1 - (bit >>> 3)
+        if(index >= 0 && ((b(index) >>> (bit & 7)) & 1) == 1) {
+          d |= (1 << j)
+        }
+        j += 1
+      }
+      d
+    }
+  }
+}
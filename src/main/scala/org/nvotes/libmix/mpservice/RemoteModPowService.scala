@@ -0,0 +1,315 @@
+package org.nvotes.libmix.mpservice
+
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.math.BigInteger
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.security.MessageDigest
+import java.security.SecureRandom
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+import javax.net.ServerSocketFactory
+import javax.net.SocketFactory
+import javax.net.ssl.SSLServerSocketFactory
+import javax.net.ssl.SSLSocketFactory
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.Executors
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import org.nvotes.libmix.Util
+
+/** Binary protocol between RemoteModPowService and ModPowWorker
+ *
+ *  A connection starts with a handshake proving knowledge of the shared secret libmix.worker-secret
+ *  in both directions, see handshake. Then a request is the number of modpows, the modulus and then
+ *  the base and exponent of each modpow. The response is the number of results followed by the results.
+ *  Numbers are written as their two's complement bytes prefixed with the length.
+ *  A request with a negative count closes the connection.
+ *
+ *  Requests carry secret exponents. Without libmix.worker-tls=true they are sent in cleartext, so workers
+ *  must only be reachable over a trusted network. Lengths read from the peer are bounded by maxBatch and
+ *  maxModulusBytes before anything is allocated. Workers serve at most maxConnections connections and close
+ *  those that do not complete the handshake within handshakeTimeout or stay idle for idleTimeout.
+ */
+object ModPowProtocol {
+
+  /** Shared secret of clients and workers, empty if not set */
+  val secret = sys.props.get("libmix.worker-secret").getOrElse("")
+
+  /** Use TLS, configured with the standard javax.net.ssl keyStore and trustStore properties */
+  val tls = Util.getEnvBoolean("libmix.worker-tls")
+
+  /** Maximum modpows per request, larger batches are sent in several requests */
+  val maxBatch = Util.getEnvInt("libmix.worker-max-batch", 1 << 16)
+
+  /** Maximum modulus size in bytes, bases and results are smaller, exponents at most twice as long */
+  val maxModulusBytes = Util.getEnvInt("libmix.worker-max-modulus-bytes", 1024)
+
+  /** Maximum concurrent connections of a worker, further connections are closed at once */
+  val maxConnections = Util.getEnvInt("libmix.worker-max-connections", 64)
+
+  /** Milliseconds a worker waits for the handshake */
+  val handshakeTimeout = Util.getEnvInt("libmix.worker-handshake-timeout", 10000)
+
+  /** Milliseconds a worker waits for the next request, clients reopen connections idle for half as long */
+  val idleTimeout = Util.getEnvInt("libmix.worker-idle-timeout", 600000)
+
+  private val NonceBytes = 32
+
+  def serverSocketFactory: ServerSocketFactory = if(tls) SSLServerSocketFactory.getDefault else ServerSocketFactory.getDefault
+
+  def socketFactory: SocketFactory = if(tls) SSLSocketFactory.getDefault else SocketFactory.getDefault
+
+  def writeBigInteger(out: DataOutputStream, value: BigInteger): Unit = {
+    val bytes = value.toByteArray
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  /** Reads a number of at most maxBytes bytes */
+  def readBigInteger(in: DataInputStream, maxBytes: Int): BigInteger = {
+    val length = in.readInt
+    if(length <= 0 || length > maxBytes) throw new IOException(s"Invalid number length $length")
+    val bytes = new Array[Byte](length)
+    in.readFully(bytes)
+    new BigInteger(bytes)
+  }
+
+  /** Reads a request count, -1 closes the connection */
+  def readCount(in: DataInputStream): Int = {
+    val count = in.readInt
+    if(count < -1 || count > maxBatch) throw new IOException(s"Invalid request count $count")
+    count
+  }
+
+  /** Mutual challenge response authentication with HMAC-SHA256 over both nonces
+   *
+   *  Each side sends a random nonce, then proves knowledge of the secret with a mac over both nonces
+   *  and its role. Throws IOException if the peer's mac does not match.
+   */
+  def handshake(in: DataInputStream, out: DataOutputStream, server: Boolean): Unit = {
+    val nonce = new Array[Byte](NonceBytes)
+    new SecureRandom().nextBytes(nonce)
+    out.write(nonce)
+    out.flush()
+    val peerNonce = new Array[Byte](NonceBytes)
+    in.readFully(peerNonce)
+
+    val (serverNonce, clientNonce) = if(server) (nonce, peerNonce) else (peerNonce, nonce)
+    out.write(mac(if(server) "server" else "client", serverNonce, clientNonce))
+    out.flush()
+    val peerMac = new Array[Byte](NonceBytes)
+    in.readFully(peerMac)
+    if(!MessageDigest.isEqual(peerMac, mac(if(server) "client" else "server", serverNonce, clientNonce))) {
+      throw new IOException("Worker authentication failed")
+    }
+  }
+
+  private def mac(role: String, serverNonce: Array[Byte], clientNonce: Array[Byte]): Array[Byte] = {
+    val mac = Mac.getInstance("HmacSHA256")
+    // HMAC keys may not be empty
+    mac.init(new SecretKeySpec(("libmix" + secret).getBytes("UTF-8"), "HmacSHA256"))
+    mac.update(role.getBytes("UTF-8"))
+    mac.update(serverNonce)
+    mac.doFinal(clientNonce)
+  }
+
+  /** Writes the modpows with index in [from, to) */
+  def writeRequest(out: DataOutputStream, bases: Array[BigInteger], pows: Array[BigInteger], from: Int, to: Int,
+    mod: BigInteger): Unit = {
+    out.writeInt(to - from)
+    writeBigInteger(out, mod)
+    for(i <- from until to) {
+      writeBigInteger(out, bases(i))
+      writeBigInteger(out, pows(i))
+    }
+    out.flush()
+  }
+
+  /** Reads results into [from, to), results are smaller than the modulus */
+  def readResponse(in: DataInputStream, results: Array[BigInteger], from: Int, to: Int, mod: BigInteger): Unit = {
+    val count = in.readInt
+    if(count != to - from) throw new IOException(count + "!=" + (to - from))
+    val maxBytes = mod.toByteArray.length
+    for(i <- from until to) {
+      results(i) = readBigInteger(in, maxBytes)
+    }
+  }
+
+  def writeClose(out: DataOutputStream): Unit = {
+    out.writeInt(-1)
+    out.flush()
+  }
+}
+
+/** A connection to one worker, opened on first use and reopened after errors */
+class WorkerConnection(val address: InetSocketAddress) {
+
+  private var socket: Socket = null
+  private var in: DataInputStream = null
+  private var out: DataOutputStream = null
+  private var lastUse = 0L
+
+  /** Computes the modpows with index in [from, to) on the worker, writing into results */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], from: Int, to: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = synchronized {
+
+    try {
+      // the worker closes idle connections, reopen them before it does
+      if(socket != null && System.currentTimeMillis - lastUse > ModPowProtocol.idleTimeout / 2) {
+        close()
+      }
+      if(socket == null) {
+        socket = ModPowProtocol.socketFactory.createSocket(address.getHostString, address.getPort)
+        socket.setTcpNoDelay(true)
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+        ModPowProtocol.handshake(in, out, false)
+      }
+      for(start <- from until to by ModPowProtocol.maxBatch) {
+        val end = math.min(start + ModPowProtocol.maxBatch, to)
+        ModPowProtocol.writeRequest(out, bases, pows, start, end, mod)
+        ModPowProtocol.readResponse(in, results, start, end, mod)
+      }
+      lastUse = System.currentTimeMillis
+    }
+    catch {
+      case e: IOException =>
+        close()
+        throw e
+    }
+  }
+
+  def close(): Unit = synchronized {
+    if(socket != null) {
+      try {
+        ModPowProtocol.writeClose(out)
+        socket.close()
+      }
+      catch {
+        case e: IOException =>
+      }
+      socket = null
+    }
+  }
+
+  override def toString = address.toString
+}
+
+/** ModPowService implementation that distributes batches over a pool of worker processes
+ *
+ *  Each batch is split into contiguous ranges, one per worker, which are sent in parallel.
+ *  Results are gathered in order. If a worker fails its range is computed locally with the
+ *  fallback service.
+ */
+class RemoteModPowService(addresses: Seq[InetSocketAddress], fallback: ModPowService) extends ModPowService {
+
+  val logger = LoggerFactory.getLogger(classOf[RemoteModPowService])
+
+  val workers = addresses.map(new WorkerConnection(_)).toArray
+
+  /** One thread per worker, connections are used by one request at a time */
+  private val pool = Executors.newFixedThreadPool(math.max(1, workers.length),
+    ModPowService.daemonThreads("mpservice-remote"))
+
+  /** Compute modular exponentiation for a list of inputs */
+  def compute(work: Array[ModPow]): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    work.indices.groupBy(work(_).mod).foreach { case (mod, indices) =>
+      val computed = new Array[BigInteger](indices.length)
+      compute(indices.map(work(_).base).toArray, indices.map(work(_).pow).toArray, indices.length, mod, computed)
+      indices.zip(computed).foreach { case (i, r) => results(i) = r }
+    }
+
+    results
+  }
+
+  /** Compute modular exponentiation for a list of inputs with common modulus */
+  def compute(work: Array[ModPow2], mod: BigInteger): Array[BigInteger] = {
+    val results = new Array[BigInteger](work.length)
+    compute(work.map(_.base), work.map(_.pow), work.length, mod, results)
+
+    results
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, in place */
+  def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): Unit = {
+    try {
+      computeAsync(bases, pows, count, mod, results).join()
+    }
+    catch {
+      case e: CompletionException => throw e.getCause
+    }
+  }
+
+  /** Compute modular exponentiation for the first count inputs with common modulus, without blocking
+   *
+   *  Each worker's range is sent from this service's pool, the future completes when all ranges are written.
+   */
+  override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+    results: Array[BigInteger]): CompletableFuture[Array[BigInteger]] = {
+
+    val ranges = (0 until workers.length).map { w =>
+      (w, count * w / workers.length, count * (w + 1) / workers.length)
+    }.filter { case (_, from, to) => to > from }
+
+    val futures = ranges.map { case (w, from, to) =>
+      CompletableFuture.runAsync(() => {
+        try {
+          workers(w).compute(bases, pows, from, to, mod, results)
+        }
+        catch {
+          case e: IOException =>
+            logger.warn(s"Worker ${workers(w)} failed, computing ${to - from} modpows locally", e)
+            val computed = new Array[BigInteger](to - from)
+            fallback.compute(bases.slice(from, to), pows.slice(from, to), to - from, mod, computed)
+            System.arraycopy(computed, 0, results, from, to - from)
+        }
+      }, pool)
+    }
+    CompletableFuture.allOf(futures: _*).thenApply[Array[BigInteger]](_ => results)
+  }
+
+  /** Compute modular exponentiation for a list of inputs, returns inputs also */
+  def computeDebug(work: Array[ModPow2], mod: BigInteger): Array[ModPowResult] = {
+    val results = compute(work, mod)
+    work.zip(results).map { case (x, r) => ModPowResult(x.base, x.pow, mod, r) }
+  }
+
+  /** Closes all worker connections */
+  def close(): Unit = workers.foreach(_.close())
+
+  override def toString = s"RemoteModPowService(${workers.mkString(",")})"
+}
+
+/** Remote workers configured with libmix.workers=host:port,host:port,..
+ *
+ *  See ModPowProtocol for the trust model: set the same libmix.worker-secret for clients and workers,
+ *  and libmix.worker-tls=true unless the network between them is trusted.
+ */
+object RemoteModPowService {
+
+  val workers = sys.props.get("libmix.workers").map(parseAddresses).getOrElse(Seq())
+
+  val enabled = workers.nonEmpty
+
+  /** Parses host:port,host:port,.. */
+  def parseAddresses(value: String): Seq[InetSocketAddress] = {
+    value.split(",").map(_.trim).filter(_.nonEmpty).map { address =>
+      val separator = address.lastIndexOf(':')
+      if(separator < 0) throw new IllegalArgumentException(s"Invalid worker address '$address'")
+      InetSocketAddress.createUnresolved(address.substring(0, separator), address.substring(separator + 1).toInt)
+    }.toSeq
+  }
+}
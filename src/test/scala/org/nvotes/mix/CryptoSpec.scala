@@ -56,6 +56,261 @@ class CryptoSpec extends FlatSpec {
     assert(plaintexts.sorted == decrypted.map(_.toInt).sorted)
   }
 
+  "Batch verification" should "accept valid shuffle proofs and reject invalid ones" in {
+    import ch.bfh.unicrypt.crypto.mixer.classes.ReEncryptionMixer
+    import ch.bfh.unicrypt.crypto.proofsystem.classes.PermutationCommitmentProofSystem
+    import ch.bfh.unicrypt.crypto.proofsystem.classes.ReEncryptionShuffleProofSystem
+    import ch.bfh.unicrypt.crypto.schemes.commitment.classes.PermutationCommitmentScheme
+
+    val n = 10
+    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val publicKey = elGamal.getKeyPairGenerator().generateKeyPair().getSecond()
+    val votes = Util.tupleFromSeq(Util.encryptVotes(Seq.fill(n)(1), Csettings, publicKey.asInstanceOf[GStarModElement]))
+
+    val mixer = ReEncryptionMixer.getInstance(elGamal, publicKey, n)
+    val psi = mixer.getPermutationGroup().getRandomElement()
+    val pcs = PermutationCommitmentScheme.getInstance(grp, n)
+    val sV = pcs.getRandomizationSpace().getRandomElement()
+    val permutationCommitment = pcs.commit(psi, sV)
+    val otherCommitment = pcs.commit(mixer.getPermutationGroup().getRandomElement(), sV)
+    val rV = mixer.generateRandomizations()
+    val shuffled = mixer.shuffle(votes, psi, rV)
+
+    val pcps = PermutationCommitmentProofSystem.getInstance(grp, n)
+    val permutationProof = pcps.generate(Pair.getInstance(psi, sV), permutationCommitment)
+    assert(pcps.batchVerify(permutationProof, permutationCommitment, 64))
+    assert(!pcps.batchVerify(permutationProof, otherCommitment, 64))
+
+    val spg = ReEncryptionShuffleProofSystem.getInstance(n, elGamal, publicKey)
+    val publicInput = Tuple.getInstance(permutationCommitment, votes, shuffled)
+    val mixProof = spg.generate(Tuple.getInstance(psi, sV, rV), publicInput)
+    assert(spg.batchVerify(mixProof, publicInput, 64))
+    assert(!spg.batchVerify(mixProof, Tuple.getInstance(permutationCommitment, votes, votes), 64))
+  }
+
+  "Bulk deserialization" should "match fromString and reject non members" in {
+    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val publicKey = elGamal.getKeyPairGenerator().generateKeyPair().getSecond().asInstanceOf[GStarModElement]
+    val strings = Util.getRandomVotesStr(10, Csettings.generator, publicKey).seq
+
+    val votes = Util.ciphertextsFromStrings(strings, Csettings)
+    assert(votes == strings.map(Util.fromString(elGamal.getEncryptionSpace, _)))
+    val elements = Util.elementsFromStrings(grp, votes.map(_.getFirst.convertToString))
+    assert(elements == votes.map(_.getFirst))
+    assert(Util.elementsFromStrings(votes.map(_.getFirst.convertToString), Csettings) == elements)
+    val tuple = Util.tupleFromSeq(elements)
+    val space = tuple.getSet
+    assert(Util.tupleFromString(grp, space, tuple.convertToString) == Util.fromString(space, tuple.convertToString))
+
+    val values = votes.map(_.getFirst.asInstanceOf[GStarModElement].getValue).toArray
+    assert(grp.containsAll(values:_*))
+    // p = 3 mod 4, so -1 is not a quadratic residue
+    val nonMember = grp.getModulus.subtract(BigInteger.ONE)
+    assert(!grp.containsAll(values :+ nonMember:_*))
+    assert(!grp.containsAll(values :+ grp.getModulus:_*))
+    intercept[Exception] {
+      Util.elementsFromStrings(grp, Seq(values(0).toString, nonMember.toString))
+    }
+  }
+
+  "A validated shuffle" should "return its shuffled votes without reparsing" in {
+    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val publicKey = elGamal.getKeyPairGenerator().generateKeyPair().getSecond().asInstanceOf[GStarModElement]
+    val strings = Util.encryptVotes(Seq.fill(10)(1), Csettings, publicKey).map(_.convertToString)
+
+    val votes = ValidatedCiphertexts.fromStrings(strings, Csettings)
+    val (result, shuffled) = MX.shuffle(votes, publicKey, Csettings, "proverId")
+
+    assert(shuffled.strings == result.votes)
+    assert(Verifier.verifyShuffle(votes.tuple, shuffled.tuple, result.shuffleProof, "proverId", publicKey, Csettings))
+  }
+
+  "Parallel bridging commitments" should "equal the sequential ones" in {
+    import ch.bfh.unicrypt.crypto.proofsystem.classes.PermutationCommitmentProofSystem
+    import ch.bfh.unicrypt.crypto.schemes.commitment.classes.PermutationCommitmentScheme
+    import ch.bfh.unicrypt.helper.random.deterministic.DeterministicRandomByteSequence
+    import ch.bfh.unicrypt.math.algebra.general.classes.PermutationGroup
+
+    val n = 10
+    val pcs = PermutationCommitmentScheme.getInstance(grp, n)
+    val pcps = PermutationCommitmentProofSystem.getInstance(grp, n)
+    // the same deterministic randomness on both branches
+    def generate(parallel: Boolean) = {
+      val rbs = DeterministicRandomByteSequence.getInstance()
+      val psi = PermutationGroup.getInstance(n).getRandomElement(rbs)
+      val rs = pcs.getRandomizationSpace().getRandomElement(rbs)
+      val com = pcs.commit(psi, rs)
+      PermutationCommitmentProofSystem.setParallelBridging(parallel)
+      val proof = pcps.generate(Pair.getInstance(psi, rs), com, rbs)
+      assert(pcps.verify(proof, com))
+      proof
+    }
+
+    val parallel = PermutationCommitmentProofSystem.isParallelBridging
+    try {
+      val sequential = generate(false)
+      val independent = generate(true)
+      assert(pcps.getBridingCommitment(independent) == pcps.getBridingCommitment(sequential))
+      assert(independent == sequential)
+    }
+    finally {
+      PermutationCommitmentProofSystem.setParallelBridging(parallel)
+    }
+  }
+
+  "An async shuffle" should "run its proof stages on the given executor" in {
+    import org.nvotes.libmix.mpservice.{MPBridge, ModPowService}
+    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val publicKey = elGamal.getKeyPairGenerator().generateKeyPair().getSecond().asInstanceOf[GStarModElement]
+    val votes = ValidatedCiphertexts.fromStrings(Util.encryptVotes(Seq.fill(10)(1), Csettings, publicKey)
+      .map(_.convertToString), Csettings)
+
+    val tasks = new java.util.concurrent.atomic.AtomicInteger()
+    val pool = java.util.concurrent.Executors.newFixedThreadPool(2, ModPowService.daemonThreads("CryptoSpec-proof"))
+    val executor: java.util.concurrent.Executor = { r: Runnable =>
+      tasks.incrementAndGet()
+      pool.execute(r)
+    }
+    val extractor = MPBridge.isExtractor
+    try {
+      // with extraction the shuffle's modpows are computed by MPBridge.runAsync
+      List(false, true).foreach { extract =>
+        MPBridge.setExtractor(extract)
+        tasks.set(0)
+        val (result, shuffled) = MX.shuffleAsync(votes, publicKey, Csettings, "proverId", executor).join()
+        assert(tasks.get >= 3)
+        assert(shuffled.strings == result.votes)
+        assert(Verifier.verifyShuffleAsync(votes.tuple, shuffled.tuple, result.shuffleProof, "proverId", publicKey,
+          Csettings, executor).join())
+      }
+    }
+    finally {
+      MPBridge.setExtractor(extractor)
+      pool.shutdown()
+    }
+  }
+
+  "The compact encoding" should "round trip, be canonical and reject out of range values" in {
+    val elGamal = ElGamalEncryptionScheme.getInstance(Csettings.generator)
+    val publicKey = elGamal.getKeyPairGenerator().generateKeyPair().getSecond().asInstanceOf[GStarModElement]
+    val strings = Util.getRandomVotesStr(10, Csettings.generator, publicKey).seq
+    val votes = ValidatedCiphertexts.fromStrings(strings, Csettings)
+
+    val compact = votes.compact(Csettings)
+    assert(ValidatedCiphertexts.fromCompact(compact, Csettings).ciphertexts == votes.ciphertexts)
+    assert(compact.map(_.length).sum < strings.map(_.length).sum * 6 / 10)
+
+    // validated in another group
+    val otherGroup = GStarModSafePrime.getFirstInstance(512)
+    val other = CryptoSettings(otherGroup, otherGroup.getDefaultGenerator)
+    intercept[IllegalArgumentException](votes.compact(other))
+    intercept[IllegalArgumentException](MX.shuffle(votes, publicKey, other, "proverId"))
+
+    val length = Util.compactLength(grp)
+    val q = grp.getOrder
+    val elements = Seq(gen, grp.getElement(BigInteger.ONE), grp.getElement(q.subtract(BigInteger.ONE).pow(2).mod(grp.getModulus)))
+    val bytes = Util.elementsToCompact(grp, elements)
+    assert(bytes.length == 3 * length)
+    assert(Util.elementsFromCompact(grp, bytes) == elements)
+    // every value is at most q, one of x and p - x
+    (0 until elements.size).foreach { i =>
+      val y = new BigInteger(1, java.util.Arrays.copyOfRange(bytes, i * length, (i + 1) * length))
+      assert(y.compareTo(q) <= 0)
+      assert(y == elements(i).getValue || y == grp.getModulus.subtract(elements(i).getValue))
+    }
+
+    val tooLarge = q.add(BigInteger.ONE).toByteArray.takeRight(length)
+    intercept[IllegalArgumentException] {
+      Util.elementsFromCompact(grp, tooLarge)
+    }
+    intercept[IllegalArgumentException] {
+      Util.elementsFromCompact(grp, new Array[Byte](length))
+    }
+    intercept[IllegalArgumentException] {
+      ValidatedCiphertexts.fromCompact(compact.map(_.drop(4)), Csettings)
+    }
+  }
+
+  "An elliptic curve group" should "shuffle, verify and decrypt correctly" in {
+    val ecSettings = ECCryptoSettings()
+    val (share, key) = KM.createShare("1", ecSettings)
+    assert(Verifier.verifyKeyShare(share, ecSettings, "1"))
+    val publicKey = Util.getPublicKeyFromString(share.keyShare, ecSettings.generator)
+
+    val plaintexts = Seq.fill(10)(scala.util.Random.nextInt(10))
+    val strings = Util.encryptVotes(plaintexts, ecSettings, publicKey).map(_.convertToString)
+    val votes = ValidatedCiphertexts.fromStrings(strings, ecSettings)
+    val (result, shuffled) = MX.shuffle(votes, publicKey, ecSettings, "proverId")
+    assert(Verifier.verifyShuffle(votes.tuple, shuffled.tuple, result.shuffleProof, "proverId", publicKey, ecSettings))
+
+    val decryption = KM.partialDecrypt(shuffled.ciphertexts, key, "1", ecSettings)
+    assert(Verifier.verifyPartialDecryption(decryption, shuffled.ciphertexts, ecSettings, "1", publicKey))
+
+    val encoder = Util.getEncoder(ecSettings)
+    val decoded = (shuffled.ciphertexts zip decryption.partialDecryptions).map { case (v, d) =>
+      encoder.decode(v.getSecond().apply(ecSettings.group.getElementFrom(d))).convertToString
+    }
+
+    assert(plaintexts.sorted == decoded.map(_.toInt).sorted)
+  }
+
+  "Montgomery field arithmetic" should "match BigInteger" in {
+    import org.nvotes.libmix.ec.Montgomery
+    val random = new java.util.Random(1)
+    val moduli = List(grp.getModulus, BigInteger.valueOf(1000003),
+      BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE.shiftLeft(224)).add(BigInteger.ONE.shiftLeft(192))
+        .add(BigInteger.ONE.shiftLeft(96)).subtract(BigInteger.ONE))
+    moduli.foreach { m =>
+      val montgomery = new Montgomery(m)
+      val t = new Array[Long](montgomery.getLength + 2)
+      val values = Seq.fill(5)(new BigInteger(m.bitLength + 8, random)) ++ Seq(BigInteger.ZERO, m.subtract(BigInteger.ONE))
+      for(x <- values; y <- values) {
+        val (a, b) = (montgomery.toMontgomery(x), montgomery.toMontgomery(y))
+        val result = new Array[Long](montgomery.getLength)
+        montgomery.mul(a, b, result, t)
+        assert(montgomery.fromMontgomery(result) == x.multiply(y).mod(m))
+        montgomery.add(a, b, result)
+        assert(montgomery.fromMontgomery(result) == x.add(y).mod(m))
+        montgomery.subtract(a, b, result)
+        assert(montgomery.fromMontgomery(result) == x.subtract(y).mod(m))
+      }
+    }
+    assertThrows[IllegalArgumentException](new Montgomery(BigInteger.valueOf(1000)))
+  }
+
+  "A Schnorr group" should "shuffle, verify and decrypt correctly" in {
+    val schnorrSettings = SchnorrCryptoSettings(1024, 160)
+    val (share, key) = KM.createShare("1", schnorrSettings)
+    assert(Verifier.verifyKeyShare(share, schnorrSettings, "1"))
+    val publicKey = Util.getPublicKeyFromString(share.keyShare, schnorrSettings.generator)
+
+    val plaintexts = Seq.fill(10)(scala.util.Random.nextInt(10))
+    val strings = Util.encryptVotes(plaintexts, schnorrSettings, publicKey).map(_.convertToString)
+    val votes = ValidatedCiphertexts.fromStrings(strings, schnorrSettings)
+    val (result, shuffled) = MX.shuffle(votes, publicKey, schnorrSettings, "proverId")
+    assert(Verifier.verifyShuffle(votes.tuple, shuffled.tuple, result.shuffleProof, "proverId", publicKey,
+      schnorrSettings))
+
+    val decryption = KM.partialDecrypt(shuffled.ciphertexts, key, "1", schnorrSettings)
+    assert(Verifier.verifyPartialDecryption(decryption, shuffled.ciphertexts, schnorrSettings, "1", publicKey))
+
+    val encoder = Util.getEncoder(schnorrSettings)
+    val decoded = (shuffled.ciphertexts zip decryption.partialDecryptions).map { case (v, d) =>
+      encoder.decode(v.getSecond().apply(schnorrSettings.group.getElementFrom(d))).convertToString
+    }
+
+    assert(plaintexts.sorted == decoded.map(_.toInt).sorted)
+
+    // quadratic residues outside the order q subgroup are not members
+    val group = schnorrSettings.group
+    val values = Seq.fill(5)(group.getRandomElement().getValue)
+    assert(Util.areMembers(values.toArray, group))
+    val nonMember = new BigInteger("4")
+    assert(!group.contains(nonMember))
+    assert(!Util.areMembers((values :+ nonMember).toArray, group))
+    assert(Util.elementsFromStrings(group, values.map(_.toString)).map(_.getValue) == values)
+  }
+
   "The dkg process" should "verify shares, verify decryptions, decrypt correctly" in {
     val (share, key) = KM.createShare("1", Csettings)
     var ok = addShare(share, "1", Csettings, key.convertToString)
@@ -0,0 +1,530 @@
+package org.nvotes.mix
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import ch.bfh.unicrypt.math.algebra.general.classes.Tuple
+import ch.bfh.unicrypt.math.algebra.general.interfaces.Element
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModElement
+import java.math.BigInteger
+
+import org.nvotes.libmix.mpservice._
+
+import org.scalatest.FlatSpec
+
+class MPServiceSpec extends FlatSpec {
+
+  val grp = GStarModSafePrime.getFirstInstance(2048)
+  val mod = grp.getModulus
+  val random = new java.util.Random(1)
+
+  def randomExps(n: Int) = Array.fill(n)(new BigInteger(grp.getOrder.bitLength, random).mod(grp.getOrder))
+
+  /** Runs f with extraction enabled, libmix.extractor is not set in tests */
+  def withExtraction[T](f: => T): T = {
+    val extractor = MPBridge.isExtractor
+    MPBridge.setExtractor(true)
+    try f finally MPBridge.setExtractor(extractor)
+  }
+
+  /** Modpows extracted so far under the given site */
+  def extracted(site: String) = ExtractionMetrics.site(site).snapshot.modPows
+
+  "A fixed base table" should "match modPow" in {
+    val base = grp.getDefaultGenerator().getValue
+    val table = new FixedBaseTable(base, mod, 5)
+    val exps = randomExps(20) ++ Array(BigInteger.ZERO, BigInteger.ONE, mod.subtract(BigInteger.ONE))
+
+    exps.foreach { e =>
+      assert(table.covers(e))
+      assert(table.pow(e) == base.modPow(e, mod))
+    }
+    assert(!table.covers(mod.shiftLeft(1)))
+  }
+
+  "Fixed base tables" should "evict the least recently precomputed table" in {
+    val tables = new FixedBaseTables(2, 2)
+    val bases = randomExps(3).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    tables.precompute(bases(0), mod)
+    tables.precompute(bases(1), mod)
+    // precomputing the first again leaves the second least recently used
+    tables.precompute(bases(0), mod)
+    tables.precompute(bases(2), mod)
+    assert(tables.size == 2)
+    assert(tables.table(bases(1), mod) == null)
+    assert(tables.table(bases(0), mod) != null)
+    assert(tables.table(bases(2), mod).pow(BigInteger.TEN) == bases(2).modPow(BigInteger.TEN, mod))
+
+    // concurrent callers do not exceed the bound
+    randomExps(8).map(grp.getDefaultGenerator().getValue.modPow(_, mod)).par.foreach(tables.precompute(_, mod))
+    assert(tables.size == 2)
+    tables.clear()
+    assert(tables.size == 0)
+  }
+
+  "A multi-exponentiation" should "match the product of modPows" in {
+    // few bases uses Straus, many bases uses Pippenger
+    List(1, 2, 5, 300).foreach { n =>
+      val bases = randomExps(n).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+      val exps = randomExps(n)
+      exps(0) = BigInteger.ZERO
+      val expected = bases.zip(exps).foldLeft(BigInteger.ONE) { case (acc, (b, e)) => acc.multiply(b.modPow(e, mod)).mod(mod) }
+
+      assert(MultiExp.multiExp(bases, exps, mod) == expected)
+      assert(MultiExp.multiExp(bases, exps, mod, true) == expected)
+      assert(MPService.multiExp(bases, exps, mod) == expected)
+    }
+    assert(MultiExp.multiExp(Array(mod.subtract(BigInteger.ONE)), Array(BigInteger.ZERO), mod) == BigInteger.ONE)
+  }
+
+  "A bridge multi-exponentiation" should "only be computed when replaying" in {
+    val bases = randomExps(4).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(4)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.reduce(_.multiply(_).mod(mod))
+    val baseTuple = Tuple.getInstance(bases.map(grp.getElement(_): Element[_]):_*)
+    val expTuple = Tuple.getInstance(pows.map(grp.getZModOrder.getElement(_): Element[_]):_*)
+
+    val multiExp = MPBridge.isMultiExp
+    MPBridge.setMultiExp(true)
+    try {
+      withExtraction {
+        val passes = new scala.collection.mutable.ArrayBuffer[BigInteger]()
+        val result = MPBridge.run(() => {
+          val product = MPBridge.multiExp(baseTuple, expTuple).asInstanceOf[GStarModElement].getValue
+          passes += product
+          // a modpow so that the run replays
+          MPBridge.modPow(bases(0), pows(0), mod)
+          product
+        })
+        assert(result == expected)
+        // identity placeholder while recording
+        assert(passes == Seq(BigInteger.ONE, expected))
+      }
+      assert(MPBridge.multiExp(baseTuple, expTuple).asInstanceOf[GStarModElement].getValue == expected)
+    }
+    finally {
+      MPBridge.setMultiExp(multiExp)
+    }
+  }
+
+  "In place compute" should "match modPow for every service" in {
+    val bases = randomExps(10).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(10)
+    // only the first count entries are computed
+    val count = 8
+    val expected = (0 until count).map(i => bases(i).modPow(pows(i), mod))
+
+    List(SequentialModPowService, ParallelModPowService, GmpParallelModPowService,
+      new FixedBaseModPowService(ParallelModPowService), new ForkJoinModPowService(2, 1)).foreach { service =>
+      val results = new Array[BigInteger](bases.length)
+      service.compute(bases, pows, count, mod, results)
+      assert(results.take(count).toSeq == expected)
+      assert(results.drop(count).forall(_ == null))
+    }
+  }
+
+  "A nested bridge run" should "join the enclosing run" in {
+    val bases = randomExps(6).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(6)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    withExtraction {
+      val before = extracted("MPServiceSpec.nested")
+      val results = MPBridge.run("MPServiceSpec.nested", () => {
+        val outer = (0 until 3).map(i => MPBridge.modPow(bases(i), pows(i), mod))
+        val inner = MPBridge.run("MPServiceSpec.inner", () => (3 until 6).map(i => MPBridge.modPow(bases(i), pows(i), mod)))
+        outer ++ inner
+      })
+      assert(results == expected)
+      // one batch, the inner run is not reported separately
+      assert(extracted("MPServiceSpec.nested") == before + 6)
+      assert(extracted("MPServiceSpec.inner") == 0)
+
+      // a failed run leaves the bridge usable
+      assertThrows[RuntimeException](MPBridge.run(() => {
+        MPBridge.modPow(bases(0), pows(0), mod)
+        throw new RuntimeException()
+      }))
+      assert(MPBridge.run(() => MPBridge.modPow(bases(0), pows(0), mod)) == expected(0))
+    }
+  }
+
+  "A deferred run" should "resolve modpows in a single pass" in {
+    val bases = randomExps(6).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(6)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    withExtraction {
+      val before = extracted("MPServiceSpec.deferred")
+      var passes = 0
+      val results = MPBridge.defer("MPServiceSpec.deferred", () => {
+        passes += 1
+        val deferred = bases.indices.map(i => MPBridge.deferModPow(bases(i), pows(i), mod))
+        () => deferred.map(_.get)
+      })
+      assert(results == expected)
+      assert(extracted("MPServiceSpec.deferred") == before + 6)
+      // a run records and replays, deferred modpows are requested once
+      assert(passes == 1)
+      var runPasses = 0
+      MPBridge.run(() => {
+        runPasses += 1
+        MPBridge.modPow(bases(0), pows(0), mod)
+      })
+      assert(runPasses == 2)
+
+      // nested in a run the modpows join the enclosing batch
+      val nestedBefore = extracted("MPServiceSpec.deferred-nested")
+      val nested = MPBridge.run("MPServiceSpec.deferred-nested", () => MPBridge.defer(() => {
+        val deferred = bases.indices.map(i => MPBridge.deferModPow(bases(i), pows(i), mod))
+        () => deferred.map(_.get)
+      }))
+      assert(nested == expected)
+      assert(extracted("MPServiceSpec.deferred-nested") == nestedBefore + 6)
+    }
+  }
+
+  "An async bridge run" should "replay once the batch is computed" in {
+    val bases = randomExps(6).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(6)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    val replay = java.util.concurrent.Executors.newSingleThreadExecutor(ModPowService.daemonThreads("MPServiceSpec-replay"))
+    withExtraction {
+      val before = extracted("MPServiceSpec.async")
+      val passes = new java.util.concurrent.ConcurrentLinkedQueue[String]()
+      val future = MPBridge.runAsync("MPServiceSpec.async", () => {
+        passes.add(Thread.currentThread.getName)
+        bases.indices.map(i => MPBridge.modPow(bases(i), pows(i), mod))
+      }, replay)
+      // the calling thread is free for another run before the first completes
+      assert(MPBridge.run(() => MPBridge.modPow(bases(0), pows(0), mod)) == expected(0))
+      assert(future.join() == expected)
+      // recorded here, then replayed on the given executor with the computed batch
+      assert(passes.toArray.toSeq == Seq(Thread.currentThread.getName, "MPServiceSpec-replay"))
+      assert(extracted("MPServiceSpec.async") == before + 6)
+    }
+    replay.shutdown()
+
+    val async = new ForkJoinModPowService(2, 2).computeAsync(bases, pows, bases.length, mod, new Array[BigInteger](bases.length))
+    assert(async.join().toSeq == expected)
+  }
+
+  "A chunked bridge run" should "cover the whole range" in {
+    val bases = randomExps(10).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(10)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    val max = MPBridge.getMaxInflight
+    withExtraction {
+      MPBridge.setMaxInflight(4)
+      try {
+        val before = ExtractionMetrics.site("MPServiceSpec.chunked").snapshot
+        val results = new Array[BigInteger](bases.length)
+        MPBridge.runChunked("MPServiceSpec.chunked", bases.length, (from, to) => {
+          for(i <- from until to) results(i) = MPBridge.modPow(bases(i), pows(i), mod)
+        })
+        val after = ExtractionMetrics.site("MPServiceSpec.chunked").snapshot
+        assert(results.toSeq == expected)
+        // ranges of 1, 4, 4 and 1 indices
+        assert(after.runs == before.runs + 4)
+        assert(after.modPows == before.modPows + 10)
+        assert(MPBridge.chunkIndices(bases.length, 2) == 2)
+      }
+      finally {
+        MPBridge.setMaxInflight(max)
+      }
+    }
+    assert(MPBridge.chunkIndices(bases.length, 2) == (if(max > 0) (max / 2).max(1) else bases.length))
+  }
+
+  "A pipelined bridge run" should "compute chunks on a bounded pool" in {
+    val bases = randomExps(7).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(7)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    val chunk = MPBridge.getPipelineChunk
+    withExtraction {
+      MPBridge.setPipelineChunk(2)
+      try {
+        val before = extracted("MPServiceSpec.pipelined")
+        // chunks of 2, 2, 2 and 1, concurrently from several threads
+        val results = (1 to 8).par.map { _ =>
+          MPBridge.run("MPServiceSpec.pipelined", () => bases.indices.map(i => MPBridge.modPow(bases(i), pows(i), mod)))
+        }
+        results.foreach(r => assert(r == expected))
+        assert(extracted("MPServiceSpec.pipelined") == before + 8 * 7)
+      }
+      finally {
+        MPBridge.setPipelineChunk(chunk)
+      }
+    }
+    val executor = ModPowService.executor.asInstanceOf[java.util.concurrent.ThreadPoolExecutor]
+    assert(executor.getMaximumPoolSize == ModPowService.asyncThreads.max(1))
+  }
+
+  "A bridge run with several moduli" should "compute each modulus separately" in {
+    val mod2 = GStarModSafePrime.getFirstInstance(1024).getModulus
+    val bases = randomExps(6).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(6)
+    val moduli = Array(mod, mod2, mod, mod2, mod2, mod)
+    val expected = bases.indices.map(i => bases(i).modPow(pows(i), moduli(i)))
+
+    withExtraction {
+      val before = extracted("MPServiceSpec.moduli")
+      val results = MPBridge.run("MPServiceSpec.moduli", () => bases.indices.map(i => MPBridge.modPow(bases(i), pows(i), moduli(i))))
+      assert(results == expected)
+      val async = MPBridge.runAsync("MPServiceSpec.moduli", () => bases.indices.map(i => MPBridge.modPow(bases(i), pows(i), moduli(i))),
+        ModPowService.executor)
+      assert(async.join() == expected)
+      assert(extracted("MPServiceSpec.moduli") == before + 12)
+    }
+  }
+
+  "A coalescing service" should "merge concurrent batches" in {
+    val threads = 4
+    val bases = randomExps(threads * 3).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(threads * 3)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }.toSeq
+
+    val calls = new java.util.concurrent.atomic.AtomicInteger()
+    val first = new java.util.concurrent.CountDownLatch(1)
+    val release = new java.util.concurrent.CountDownLatch(1)
+    val counting = new ForkJoinModPowService(1, 64) {
+      override def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+        results: Array[BigInteger]): Unit = {
+        // the first, direct, call is held until the other batches are pending
+        if(calls.incrementAndGet() == 1) {
+          first.countDown()
+          release.await()
+        }
+        super.compute(bases, pows, count, mod, results)
+      }
+    }
+    // the size threshold releases the window as soon as all batches are pending
+    val service = new CoalescingModPowService(counting, 10000000, (threads - 1) * 3)
+    val results = new Array[BigInteger](bases.length)
+    val now = System.currentTimeMillis
+    def submit(t: Int) = {
+      val thread = new Thread(new Runnable { def run() = {
+        val from = t * 3
+        val out = new Array[BigInteger](3)
+        service.compute(bases.slice(from, from + 3), pows.slice(from, from + 3), 3, mod, out)
+        System.arraycopy(out, 0, results, from, 3)
+      }})
+      thread.start()
+      thread
+    }
+    // nothing else is active, so the first batch is computed without waiting for the window
+    val direct = submit(0)
+    first.await()
+    val workers = (1 until threads).map(submit)
+    workers.foreach(_.join())
+    release.countDown()
+    direct.join()
+
+    assert(results.toSeq == expected)
+    // the direct batch and one merged batch
+    assert(calls.get == 2)
+    assert(System.currentTimeMillis - now < 5000)
+
+    // a lone batch does not wait for the window either
+    val lone = new Array[BigInteger](3)
+    val start = System.currentTimeMillis
+    service.compute(bases.take(3), pows.take(3), 3, mod, lone)
+    assert(lone.toSeq == expected.take(3))
+    assert(calls.get == 3)
+    assert(System.currentTimeMillis - start < 5000)
+  }
+
+  "Extraction metrics" should "count runs per site" in {
+    val base = grp.getDefaultGenerator().getValue
+    val pow = randomExps(1)(0)
+    val before = ExtractionMetrics.site("MPServiceSpec.metrics").snapshot
+    val result = MPBridge.run("MPServiceSpec.metrics", () => MPBridge.modPow(base, pow, mod))
+    val after = ExtractionMetrics.site("MPServiceSpec.metrics").snapshot
+
+    assert(result == base.modPow(pow, mod))
+    assert(after.runs == before.runs + 1)
+    assert(after.record.count == before.record.count + 1)
+    assert(ExtractionMetrics.snapshot().exists(_.name == "MPServiceSpec.metrics"))
+
+    val histogram = new LatencyHistogram
+    List(500L, 1500L, 3000000L).foreach(histogram.record)
+    assert(histogram.snapshot.count == 3)
+    assert(histogram.snapshot.percentileMillis(50) == 0.002)
+    assert(histogram.snapshot.percentileMillis(100) == 4.096)
+  }
+
+  "A caching service" should "compute repeated modpows once" in {
+    val bases = randomExps(4).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(4)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }
+
+    // one stripe, so that eviction is exact lru over all entries
+    val cache = new CachingModPowService(SequentialModPowService, 3, true, 1)
+    // the first and last requests are the same
+    val results = new Array[BigInteger](5)
+    cache.compute(bases :+ bases(0), pows :+ pows(0), 5, mod, results)
+    assert(results.toSeq == (expected :+ expected(0)).toSeq)
+    assert(cache.getMisses == 4 && cache.getDuplicates == 1 && cache.getHits == 0)
+    // only 3 entries are kept, the least recently used request (0) was evicted
+    assert(cache.getSize == 3)
+
+    val again = new Array[BigInteger](2)
+    cache.compute(Array(bases(3), bases(0)), Array(pows(3), pows(0)), 2, mod, again)
+    assert(again.toSeq == Seq(expected(3), expected(0)))
+    assert(cache.getHits == 1 && cache.getMisses == 5)
+    assert(cache.getHitRate == 2.0 / 7)
+    cache.clear()
+    assert(cache.getSize == 0)
+
+    // striped, used concurrently
+    val striped = new CachingModPowService(SequentialModPowService, 64, true, 4)
+    (1 to 8).par.foreach { _ =>
+      val out = new Array[BigInteger](4)
+      striped.compute(bases, pows, 4, mod, out)
+      assert(out.toSeq == expected.toSeq)
+    }
+    assert(striped.getSize == 4 && striped.getMisses + striped.getHits == 32)
+  }
+
+  "Service decorators" should "forward computeAsync to the service they wrap" in {
+    val asyncCalls = new java.util.concurrent.atomic.AtomicInteger()
+    val underlying = new ModPowService {
+      def compute(work: Array[ModPow]) = SequentialModPowService.compute(work)
+      def compute(work: Array[ModPow2], mod: BigInteger) = SequentialModPowService.compute(work, mod)
+      def compute(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+        results: Array[BigInteger]) = SequentialModPowService.compute(bases, pows, count, mod, results)
+      def computeDebug(work: Array[ModPow2], mod: BigInteger) = SequentialModPowService.computeDebug(work, mod)
+      override def computeAsync(bases: Array[BigInteger], pows: Array[BigInteger], count: Int, mod: BigInteger,
+        results: Array[BigInteger]) = {
+        asyncCalls.incrementAndGet()
+        super.computeAsync(bases, pows, count, mod, results)
+      }
+    }
+    val bases = Array.fill(4)(grp.getRandomElement.convertToBigInteger)
+    val pows = randomExps(4)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }
+    val services = Seq(new FixedBaseModPowService(underlying), new CachingModPowService(underlying, 16, true),
+      new CoalescingModPowService(underlying, 100, 1024))
+    services.foreach { service =>
+      val results = service.computeAsync(bases, pows, 4, mod, new Array[BigInteger](4)).join()
+      assert(results.toSeq == expected.toSeq)
+    }
+    assert(asyncCalls.get == services.length)
+  }
+
+  "The service registry" should "find services by name or class" in {
+    assert(ModPowServiceRegistry.get("sequential") == SequentialModPowService)
+    assert(ModPowServiceRegistry.get("org.nvotes.libmix.mpservice.ParallelModPowService") == ParallelModPowService)
+    assert(ModPowServiceRegistry.available.contains("parallel"))
+    assertThrows[IllegalArgumentException](ModPowServiceRegistry.get("none"))
+    assertThrows[IllegalArgumentException](ModPowServiceRegistry.get("java.lang.Object"))
+    assert(ModPowServiceRegistry.get("org.nvotes.mix.DefaultForkJoinModPowService").isInstanceOf[DefaultForkJoinModPowService])
+    val e = intercept[IllegalArgumentException](ModPowServiceRegistry.get("org.nvotes.mix.SizedForkJoinModPowService"))
+    assert(e.getMessage.contains("SizedForkJoinModPowService"))
+  }
+
+  "A remote service" should "compute in order over several workers" in {
+    val workers = (1 to 3).map(_ => ModPowWorker.start(0, SequentialModPowService))
+    val service = new RemoteModPowService(workers.map(w => new java.net.InetSocketAddress("localhost", w.port)),
+      SequentialModPowService)
+
+    val bases = randomExps(20).map(grp.getDefaultGenerator().getValue.modPow(_, mod))
+    val pows = randomExps(20)
+    val expected = bases.zip(pows).map { case (b, p) => b.modPow(p, mod) }
+    assert(service.compute(bases.zip(pows).map { case (b, p) => ModPow2(b, p) }, mod).toSeq == expected.toSeq)
+
+    // a failed worker falls back to local computation
+    workers(0).close()
+    service.close()
+    val results = new Array[BigInteger](bases.length)
+    service.compute(bases, pows, bases.length, mod, results)
+    assert(results.toSeq == expected.toSeq)
+
+    service.close()
+    workers.foreach(_.close())
+  }
+
+  "A remote worker" should "reject unauthenticated and oversized requests" in {
+    import java.io.{DataInputStream, DataOutputStream, IOException}
+    val worker = ModPowWorker.start(0, SequentialModPowService)
+    def connect() = {
+      val socket = new java.net.Socket("localhost", worker.port)
+      socket.setSoTimeout(10000)
+      (socket, new DataInputStream(socket.getInputStream), new DataOutputStream(socket.getOutputStream))
+    }
+    def closed(in: DataInputStream) = try { in.readInt; false } catch { case e: IOException => true }
+
+    // a wrong mac closes the connection
+    val (s1, in1, out1) = connect()
+    in1.readFully(new Array[Byte](32))
+    out1.write(new Array[Byte](64))
+    out1.flush()
+    in1.readFully(new Array[Byte](32))
+    assert(closed(in1))
+    s1.close()
+
+    // a count above the maximum batch is rejected before allocating
+    val (s2, in2, out2) = connect()
+    ModPowProtocol.handshake(in2, out2, false)
+    out2.writeInt(ModPowProtocol.maxBatch + 1)
+    out2.flush()
+    assert(closed(in2))
+    s2.close()
+
+    // so is a number longer than the maximum modulus
+    val (s3, in3, out3) = connect()
+    ModPowProtocol.handshake(in3, out3, false)
+    out3.writeInt(1)
+    out3.writeInt(Int.MaxValue)
+    out3.flush()
+    assert(closed(in3))
+    s3.close()
+
+    worker.close()
+  }
+
+  it should "close silent and excess connections" in {
+    import java.io.{DataInputStream, DataOutputStream, IOException}
+    val worker = ModPowWorker.start(0, SequentialModPowService, 1, 200)
+    def connect() = {
+      val socket = new java.net.Socket("localhost", worker.port)
+      socket.setSoTimeout(10000)
+      (socket, new DataInputStream(socket.getInputStream), new DataOutputStream(socket.getOutputStream))
+    }
+    def closed(in: DataInputStream) = try { in.readInt; false } catch { case e: IOException => true }
+
+    // a connection that never answers the handshake holds the only permit
+    val (s1, in1, _) = connect()
+    in1.readFully(new Array[Byte](32))
+
+    // so a second one is closed without a nonce
+    val (s2, in2, _) = connect()
+    assert(closed(in2))
+    s2.close()
+
+    // until the handshake times out
+    val now = System.currentTimeMillis
+    assert(closed(in1))
+    assert(System.currentTimeMillis - now < 5000)
+    s1.close()
+
+    // and the permit is available again
+    val (s3, in3, out3) = connect()
+    ModPowProtocol.handshake(in3, out3, false)
+    val base = grp.getDefaultGenerator().getValue
+    val results = new Array[BigInteger](1)
+    ModPowProtocol.writeRequest(out3, Array(base), Array(BigInteger.TEN), 0, 1, mod)
+    ModPowProtocol.readResponse(in3, results, 0, 1, mod)
+    assert(results(0) == base.modPow(BigInteger.TEN, mod))
+    s3.close()
+
+    worker.close()
+  }
+}
+
+/** Loaded by class name in the registry test */
+class DefaultForkJoinModPowService extends ForkJoinModPowService(1, 8)
+
+/** Has no no argument constructor */
+class SizedForkJoinModPowService(parallelism: Int) extends ForkJoinModPowService(parallelism, 8)
@@ -0,0 +1,60 @@
+package org.nvotes.libmix.mpservice;
+
+import java.math.BigInteger;
+
+/**
+ *  Experimental ForkJoin ModPowService that computes modpows lane parallel with the Vector API.
+ *
+ *  Each range of a batch is computed VectorMontgomery.LANES modpows at a time, see VectorMontgomery.
+ *  Ranges with an even modulus or negative exponents fall back to the parent implementation.
+ *
+ *  Requires a JVM with the jdk.incubator.vector module (--add-modules jdk.incubator.vector),
+ *  select with libmix.mpservice=org.nvotes.libmix.mpservice.VectorModPowService.
+ */
+public class VectorModPowService extends ForkJoinModPowService {
+
+    /**
+     *  Service configured with libmix.parallelism and libmix.chunk-size, rounded up to a multiple of the lanes.
+     */
+    public VectorModPowService() {
+        this(ForkJoinModPowService$.MODULE$.parallelism(), ForkJoinModPowService$.MODULE$.chunkSize());
+    }
+
+    public VectorModPowService(int parallelism, int chunkSize) {
+        super(parallelism, lanes(chunkSize));
+    }
+
+    private static int lanes(int chunkSize) {
+        int lanes = VectorMontgomery.LANES;
+        return ((Math.max(chunkSize, 1) + lanes - 1) / lanes) * lanes;
+    }
+
+    @Override
+    public void computeRange(BigInteger[] bases, BigInteger[] pows, int from, int to, BigInteger mod,
+        BigInteger[] results) {
+
+        if(!mod.testBit(0) || hasNegative(pows, from, to)) {
+            super.computeRange(bases, pows, from, to, mod, results);
+        }
+        else {
+            VectorMontgomery montgomery = VectorMontgomery.getInstance(mod);
+            for(int i = from; i < to; i += VectorMontgomery.LANES) {
+                montgomery.modPow(bases, pows, i, Math.min(i + VectorMontgomery.LANES, to), results);
+            }
+        }
+    }
+
+    private static boolean hasNegative(BigInteger[] pows, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(pows[i].signum() < 0) return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "VectorModPowService(parallelism = " + parallelism() + ", chunkSize = " + chunkSize() +
+            ", lanes = " + VectorMontgomery.LANES + ")";
+    }
+}
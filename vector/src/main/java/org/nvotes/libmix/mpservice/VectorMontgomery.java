@@ -0,0 +1,257 @@
+package org.nvotes.libmix.mpservice;
+
+import java.math.BigInteger;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ *  Lane parallel Montgomery exponentiation for a fixed odd modulus, with the Vector API.
+ *
+ *  Computes LANES independent modpows at once, one per vector lane (4 with AVX2, 8 with AVX-512).
+ *  Numbers are arrays of 32 bit limbs held in 64 bit lanes and interleaved by lane, limb j of
+ *  lane l is at index j * LANES + l, so that limb products and carries fit in a lane and every
+ *  step of CIOS Montgomery multiplication is one vector operation over all lanes.
+ *
+ *  Exponentiation uses fixed windows, so all lanes follow the same sequence of squarings and
+ *  multiplications whatever their exponents, only the table entry multiplied in differs per lane.
+ *
+ *  Instances are immutable and can be shared between threads.
+ */
+public final class VectorMontgomery {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /** Number of modpows computed at once */
+    public static final int LANES = SPECIES.length();
+
+    private static final long MASK = 0xFFFFFFFFL;
+
+    /** Window size, the table holds 2^WINDOW powers per lane */
+    private static final int WINDOW = 4;
+
+    private static volatile VectorMontgomery last = null;
+
+    private final BigInteger modulus;
+    private final int n;
+    /** Modulus limbs, the same for all lanes */
+    private final long[] m;
+    private final long mInv;
+    /** R^2 mod m and R mod m, interleaved */
+    private final long[] r2;
+    private final long[] one;
+
+    public VectorMontgomery(BigInteger modulus) {
+        if(modulus.signum() <= 0 || !modulus.testBit(0)) {
+            throw new IllegalArgumentException("Modulus must be positive and odd");
+        }
+        this.modulus = modulus;
+        this.n = (modulus.bitLength() + 31) / 32;
+        this.m = limbs(modulus, n);
+
+        // Newton iteration for m^-1 mod 2^32, each step doubles the correct bits
+        long m0 = m[0];
+        long inv = 1;
+        for(int k = 0; k < 5; k++) {
+            inv = (inv * (2 - m0 * inv)) & MASK;
+        }
+        this.mInv = (-inv) & MASK;
+        this.r2 = broadcast(BigInteger.ONE.shiftLeft(64 * n).mod(modulus), n);
+        this.one = broadcast(BigInteger.ONE.shiftLeft(32 * n).mod(modulus), n);
+    }
+
+    /**
+     *  Returns a context for the given modulus, reusing the last one if the modulus is the same.
+     */
+    public static VectorMontgomery getInstance(BigInteger modulus) {
+        VectorMontgomery ret = last;
+        if(ret == null || !ret.modulus.equals(modulus)) {
+            ret = new VectorMontgomery(modulus);
+            last = ret;
+        }
+
+        return ret;
+    }
+
+    public BigInteger getModulus() {
+        return modulus;
+    }
+
+    /**
+     *  Computes bases[i]^pows[i] mod modulus into results[i] for i in [from, to), at most LANES values.
+     *
+     *  Exponents must be non negative.
+     */
+    public void modPow(BigInteger[] bases, BigInteger[] pows, int from, int to, BigInteger[] results) {
+        final int size = n * LANES;
+        final int count = to - from;
+        long[] t = new long[(n + 2) * LANES];
+
+        int bits = 1;
+        long[] x = new long[size];
+        for(int l = 0; l < count; l++) {
+            BigInteger base = bases[from + l];
+            if(base.signum() < 0 || base.compareTo(modulus) >= 0) {
+                base = base.mod(modulus);
+            }
+            setLane(x, l, base);
+            bits = Math.max(bits, pows[from + l].bitLength());
+        }
+
+        // table[k] = x^k in montgomery form, for all lanes
+        long[][] table = new long[1 << WINDOW][];
+        table[0] = one.clone();
+        table[1] = new long[size];
+        mul(x, r2, table[1], t);
+        for(int k = 2; k < table.length; k++) {
+            table[k] = new long[size];
+            mul(table[k - 1], table[1], table[k], t);
+        }
+
+        long[] acc = null;
+        long[] tmp = new long[size];
+        long[] factor = new long[size];
+        int windows = (bits + WINDOW - 1) / WINDOW;
+        for(int w = windows - 1; w >= 0; w--) {
+            for(int l = 0; l < LANES; l++) {
+                int value = l < count ? window(pows[from + l], w) : 0;
+                long[] entry = table[value];
+                for(int j = 0; j < n; j++) {
+                    factor[j * LANES + l] = entry[j * LANES + l];
+                }
+            }
+            if(acc == null) {
+                acc = factor.clone();
+            }
+            else {
+                for(int k = 0; k < WINDOW; k++) {
+                    mul(acc, acc, tmp, t);
+                    long[] swap = acc; acc = tmp; tmp = swap;
+                }
+                mul(acc, factor, tmp, t);
+                long[] swap = acc; acc = tmp; tmp = swap;
+            }
+        }
+
+        // out of montgomery form
+        long[] unit = new long[size];
+        for(int l = 0; l < LANES; l++) {
+            unit[l] = 1;
+        }
+        mul(acc, unit, tmp, t);
+        for(int l = 0; l < count; l++) {
+            results[from + l] = getLane(tmp, l);
+        }
+    }
+
+    /**
+     *  Computes a * b * R^-1 mod m into result for all lanes, t is scratch space of n + 2 limbs.
+     *
+     *  a and b must be less than m, result must not be a or b.
+     */
+    private void mul(long[] a, long[] b, long[] result, long[] t) {
+        final int n = this.n;
+        final LongVector zero = LongVector.zero(SPECIES);
+        for(int j = 0; j < n + 2; j++) {
+            zero.intoArray(t, j * LANES);
+        }
+
+        for(int i = 0; i < n; i++) {
+            final LongVector bi = LongVector.fromArray(SPECIES, b, i * LANES);
+            LongVector c = zero;
+            for(int j = 0; j < n; j++) {
+                // a_j * b_i + t_j + c < 2^64, as all terms are below 2^32
+                LongVector p = LongVector.fromArray(SPECIES, a, j * LANES).mul(bi)
+                    .add(LongVector.fromArray(SPECIES, t, j * LANES)).add(c);
+                p.and(MASK).intoArray(t, j * LANES);
+                c = p.lanewise(VectorOperators.LSHR, 32);
+            }
+            LongVector s = LongVector.fromArray(SPECIES, t, n * LANES).add(c);
+            s.and(MASK).intoArray(t, n * LANES);
+            s.lanewise(VectorOperators.LSHR, 32).intoArray(t, (n + 1) * LANES);
+
+            final LongVector t0 = LongVector.fromArray(SPECIES, t, 0);
+            final LongVector u = t0.mul(mInv).and(MASK);
+            c = u.mul(m[0]).add(t0).lanewise(VectorOperators.LSHR, 32);
+            for(int j = 1; j < n; j++) {
+                LongVector p = u.mul(m[j]).add(LongVector.fromArray(SPECIES, t, j * LANES)).add(c);
+                p.and(MASK).intoArray(t, (j - 1) * LANES);
+                c = p.lanewise(VectorOperators.LSHR, 32);
+            }
+            s = LongVector.fromArray(SPECIES, t, n * LANES).add(c);
+            s.and(MASK).intoArray(t, (n - 1) * LANES);
+            LongVector.fromArray(SPECIES, t, (n + 1) * LANES).add(s.lanewise(VectorOperators.LSHR, 32))
+                .intoArray(t, n * LANES);
+        }
+
+        // result = t - m in lanes where t >= m, t elsewhere
+        LongVector borrow = zero;
+        for(int j = 0; j < n; j++) {
+            LongVector d = LongVector.fromArray(SPECIES, t, j * LANES).sub(m[j]).sub(borrow);
+            d.and(MASK).intoArray(result, j * LANES);
+            borrow = d.lanewise(VectorOperators.LSHR, 63);
+        }
+        VectorMask<Long> keep = LongVector.fromArray(SPECIES, t, n * LANES).compare(VectorOperators.LT, borrow);
+        for(int j = 0; j < n; j++) {
+            LongVector.fromArray(SPECIES, result, j * LANES)
+                .blend(LongVector.fromArray(SPECIES, t, j * LANES), keep)
+                .intoArray(result, j * LANES);
+        }
+    }
+
+    /** Returns the w-th WINDOW bit digit of the exponent */
+    private static int window(BigInteger pow, int w) {
+        int value = 0;
+        for(int k = WINDOW - 1; k >= 0; k--) {
+            value = (value << 1) | (pow.testBit(w * WINDOW + k) ? 1 : 0);
+        }
+
+        return value;
+    }
+
+    /** Returns the n limbs of value */
+    private static long[] limbs(BigInteger value, int n) {
+        byte[] bytes = value.toByteArray();
+        long[] limbs = new long[n];
+        for(int k = 0; k < bytes.length && k / 4 < n; k++) {
+            limbs[k / 4] |= (bytes[bytes.length - 1 - k] & 0xFFL) << (8 * (k % 4));
+        }
+
+        return limbs;
+    }
+
+    /** Returns the limbs of value in every lane */
+    private static long[] broadcast(BigInteger value, int n) {
+        long[] limbs = limbs(value, n);
+        long[] ret = new long[n * LANES];
+        for(int j = 0; j < n; j++) {
+            for(int l = 0; l < LANES; l++) {
+                ret[j * LANES + l] = limbs[j];
+            }
+        }
+
+        return ret;
+    }
+
+    private void setLane(long[] x, int lane, BigInteger value) {
+        long[] limbs = limbs(value, n);
+        for(int j = 0; j < n; j++) {
+            x[j * LANES + lane] = limbs[j];
+        }
+    }
+
+    private BigInteger getLane(long[] x, int lane) {
+        byte[] bytes = new byte[4 * n];
+        for(int j = 0; j < n; j++) {
+            long v = x[j * LANES + lane];
+            int o = 4 * (n - 1 - j);
+            bytes[o] = (byte) (v >>> 24);
+            bytes[o + 1] = (byte) (v >>> 16);
+            bytes[o + 2] = (byte) (v >>> 8);
+            bytes[o + 3] = (byte) v;
+        }
+
+        return new BigInteger(1, bytes);
+    }
+}
@@ -0,0 +1,62 @@
+package org.nvotes.libmix.mpservice
+
+import java.math.BigInteger
+import java.util.concurrent.TimeUnit
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+
+import org.openjdk.jmh.annotations._
+
+/** Compares the lane parallel Vector API implementation with the GMP and BigInteger parallel collections ones
+ *
+ *  All compute the same batch of modpows with common modulus, in place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class VectorModPowServiceBenchmark {
+
+  @Param(Array("1000"))
+  var size: Int = _
+
+  @Param(Array("2048"))
+  var bits: Int = _
+
+  @Param(Array("16"))
+  var chunkSize: Int = _
+
+  var mod: BigInteger = _
+  var bases: Array[BigInteger] = _
+  var pows: Array[BigInteger] = _
+  var results: Array[BigInteger] = _
+  var vector: VectorModPowService = _
+
+  @Setup
+  def setup(): Unit = {
+    val group = GStarModSafePrime.getFirstInstance(bits)
+    val random = new java.util.Random(1)
+    mod = group.getModulus
+    bases = Array.fill(size)(group.getDefaultGenerator().getValue.modPow(new BigInteger(bits, random), mod))
+    pows = Array.fill(size)(new BigInteger(group.getOrder.bitLength, random).mod(group.getOrder))
+    results = new Array[BigInteger](size)
+    vector = new VectorModPowService(Runtime.getRuntime.availableProcessors, chunkSize)
+  }
+
+  @Benchmark
+  def gmpParallel(): Array[BigInteger] = {
+    GmpParallelModPowService.compute(bases, pows, size, mod, results)
+    results
+  }
+
+  @Benchmark
+  def bigIntegerParallel(): Array[BigInteger] = {
+    ParallelModPowService.compute(bases, pows, size, mod, results)
+    results
+  }
+
+  @Benchmark
+  def vectorLanes(): Array[BigInteger] = {
+    vector.compute(bases, pows, size, mod, results)
+    results
+  }
+}
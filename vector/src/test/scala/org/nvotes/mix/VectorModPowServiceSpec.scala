@@ -0,0 +1,32 @@
+package org.nvotes.mix
+
+import ch.bfh.unicrypt.math.algebra.multiplicative.classes.GStarModSafePrime
+import java.math.BigInteger
+
+import org.nvotes.libmix.mpservice._
+
+import org.scalatest.FlatSpec
+
+class VectorModPowServiceSpec extends FlatSpec {
+
+  val random = new java.util.Random(1)
+
+  "The vector engine" should "match modPow in every lane" in {
+    val moduli = List(GStarModSafePrime.getFirstInstance(2048).getModulus, BigInteger.valueOf(1000003),
+      BigInteger.ONE.shiftLeft(127).subtract(BigInteger.ONE))
+    moduli.foreach { m =>
+      // not a multiple of the lanes, so that the last group is partial
+      val count = 3 * VectorMontgomery.LANES + 1
+      val bases = Array.fill(count)(new BigInteger(m.bitLength + 8, random))
+      val pows = Array.fill(count)(new BigInteger(m.bitLength, random))
+      bases(0) = BigInteger.ZERO
+      bases(1) = m.subtract(BigInteger.ONE)
+      pows(2) = BigInteger.ZERO
+      pows(3) = BigInteger.ONE
+      val results = new Array[BigInteger](count)
+      new VectorModPowService(2, 3).compute(bases, pows, count, m, results)
+      assert(results.toSeq == bases.zip(pows).map { case (b, p) => b.modPow(p, m) }.toSeq)
+    }
+    assertThrows[IllegalArgumentException](new VectorMontgomery(BigInteger.valueOf(1000)))
+  }
+}